@@ -0,0 +1,102 @@
+package gsrs.module.substance.benchmarks;
+
+import gsrs.module.substance.exporters.XslExporter;
+import gsrs.module.substance.importers.XslImportAdapter;
+
+import ix.ginas.models.v1.Substance;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.AbstractPlatformTransactionManager;
+import org.springframework.transaction.support.DefaultTransactionStatus;
+
+/**
+ * Header, footer and delimiter of the bundled templates, as configured in the
+ * README, and the helpers shared by the benchmarks.
+ *
+ * @author Egor Puzanov
+ */
+public final class BenchmarkFormats {
+
+    private static final String BUNDLE_HEADER = "{\"resourceType\":\"Bundle\",\"type\":\"collection\",\"entry\": [{\"resource\":";
+    private static final String BUNDLE_FOOTER = "}]}";
+    private static final String BUNDLE_DELIMITER = "},{\"resource\":";
+
+    private BenchmarkFormats() {
+    }
+
+    /**
+     * Returns header, footer and delimiter of the export or import template.
+     */
+    public static String[] framing(String templateFile) {
+        if (templateFile.contains("gsrsp")) {
+            return new String[]{"\t\t", "", "\n\t\t"};
+        }
+        return new String[]{BUNDLE_HEADER, BUNDLE_FOOTER, BUNDLE_DELIMITER};
+    }
+
+    /**
+     * Returns the import template which reads the output of the export
+     * template.
+     */
+    public static String importTemplate(String exportTemplate) {
+        return exportTemplate.replaceFirst("^export-", "import-");
+    }
+
+    public static XslExporter exporter(ByteArrayOutputStream out, String templateFile) throws IOException {
+        String[] framing = framing(templateFile);
+        try {
+            return new XslExporter(out, templateFile, framing[0], framing[1], framing[2]);
+        } catch (Exception e) {
+            throw new IOException("Failed to create exporter for XSL template: " + templateFile, e);
+        }
+    }
+
+    public static byte[] export(String templateFile, List<Substance> substances) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        XslExporter exporter = exporter(out, templateFile);
+        for (Substance substance : substances) {
+            exporter.export(substance);
+        }
+        exporter.close();
+        return out.toByteArray();
+    }
+
+    public static XslImportAdapter importAdapter(String templateFile) {
+        String[] framing = framing(templateFile);
+        XslImportAdapter adapter = new XslImportAdapter();
+        adapter.setTemplateFile(templateFile);
+        adapter.setHeader(framing[0]);
+        adapter.setFooter(framing[1]);
+        adapter.setDelimiter(framing[2]);
+        adapter.setPlatformTransactionManager(new NoTransactionManager());
+        return adapter;
+    }
+
+    /**
+     * Transaction manager without a database, so that the benchmarks measure
+     * the conversion of the substances only.
+     */
+    public static class NoTransactionManager extends AbstractPlatformTransactionManager {
+
+        @Override
+        protected Object doGetTransaction() {
+            return new Object();
+        }
+
+        @Override
+        protected void doBegin(Object transaction, TransactionDefinition definition) {
+        }
+
+        @Override
+        protected void doCommit(DefaultTransactionStatus status) {
+        }
+
+        @Override
+        protected void doRollback(DefaultTransactionStatus status) {
+        }
+    }
+}
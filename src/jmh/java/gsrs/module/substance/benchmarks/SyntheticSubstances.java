@@ -0,0 +1,271 @@
+package gsrs.module.substance.benchmarks;
+
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import ix.ginas.models.v1.Substance;
+import ix.ginas.utils.JsonSubstanceFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Generates reproducible synthetic GSRS substances for the benchmarks.
+ *
+ * <p>The size controls the number of names, codes, references and notes and
+ * the size of the class specific definition: the length of the protein
+ * sequence, the number of mixture components and polymer monomers, and the
+ * number of atoms of the chemical structure. The number of references can
+ * be set separately; references beyond the size are cited by the names.</p>
+ *
+ * @author Egor Puzanov
+ */
+public final class SyntheticSubstances {
+
+    public static final String[] SUBSTANCE_CLASSES = {"chemical", "protein", "mixture", "polymer"};
+
+    private static final JsonNodeFactory NODES = JsonNodeFactory.instance;
+    private static final String AMINO_ACIDS = "ACDEFGHIKLMNPQRSTVWY";
+
+    private final Random random;
+
+    public SyntheticSubstances(long seed) {
+        this.random = new Random(seed);
+    }
+
+    /**
+     * Returns {@code count} substances of the class, built from the generated
+     * JSON by {@link JsonSubstanceFactory}.
+     */
+    public List<Substance> substances(String substanceClass, int size, int count) {
+        return substances(substanceClass, size, size, count);
+    }
+
+    /**
+     * Returns {@code count} substances of the class with {@code references}
+     * root references, each of them cited by one of the names.
+     */
+    public List<Substance> substances(String substanceClass, int size, int references, int count) {
+        List<Substance> substances = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            substances.add(JsonSubstanceFactory.makeSubstance(json(substanceClass, size, references)));
+        }
+        return substances;
+    }
+
+    public ObjectNode json(String substanceClass, int size) {
+        return json(substanceClass, size, size);
+    }
+
+    public ObjectNode json(String substanceClass, int size, int referenceCount) {
+        ObjectNode substance = NODES.objectNode();
+        substance.put("uuid", uuid());
+        substance.put("substanceClass", substanceClass);
+        substance.put("version", "1");
+        substance.put("status", "approved");
+        substance.put("approvalID", approvalId());
+        substance.put("definitionType", "PRIMARY");
+        substance.put("definitionLevel", "COMPLETE");
+        substance.put("deprecated", false);
+        audit(substance);
+
+        ArrayNode references = substance.putArray("references");
+        List<String> referenceIds = new ArrayList<>();
+        for (int i = 0; i < referenceCount; i++) {
+            ObjectNode reference = references.addObject();
+            String id = uuid();
+            referenceIds.add(id);
+            reference.put("uuid", id);
+            reference.put("docType", i == 0 ? "SYSTEM" : "WEBSITE");
+            reference.put("citation", "Synthetic citation " + i + " " + text(40));
+            reference.put("url", "https://example.org/reference/" + i);
+            reference.put("publicDomain", true);
+            reference.putArray("tags").add("PUBLIC_DOMAIN_RELEASE");
+            audit(reference);
+        }
+
+        ArrayNode names = substance.putArray("names");
+        for (int i = 0; i < size; i++) {
+            ObjectNode name = names.addObject();
+            name.put("uuid", uuid());
+            name.put("name", "SYNTHETIC " + substanceClass.toUpperCase() + " " + text(12) + " " + i);
+            name.put("type", i == 0 ? "cn" : "sys");
+            name.put("displayName", i == 0);
+            name.put("preferred", i == 0);
+            name.putArray("languages").add("en");
+            references(name, referenceIds);
+            audit(name);
+        }
+        if (referenceCount > size) {
+            for (int i = 0; i < referenceCount; i++) {
+                ((ObjectNode) names.get(i % names.size())).withArray("references").add(referenceIds.get(i));
+            }
+        }
+
+        ArrayNode codes = substance.putArray("codes");
+        for (int i = 0; i < size; i++) {
+            ObjectNode code = codes.addObject();
+            code.put("uuid", uuid());
+            code.put("code", String.valueOf(1000000 + random.nextInt(9000000)));
+            code.put("codeSystem", i % 3 == 0 ? "CAS" : i % 3 == 1 ? "PUBCHEM" : "ECHA (EC/EINECS)");
+            code.put("type", "PRIMARY");
+            references(code, referenceIds);
+            audit(code);
+        }
+
+        ArrayNode notes = substance.putArray("notes");
+        for (int i = 0; i < size / 4 + 1; i++) {
+            ObjectNode note = notes.addObject();
+            note.put("uuid", uuid());
+            note.put("note", text(200));
+            references(note, referenceIds);
+        }
+
+        switch (substanceClass) {
+            case "protein":
+                protein(substance, size, referenceIds);
+                break;
+            case "mixture":
+                mixture(substance, size, referenceIds);
+                break;
+            case "polymer":
+                polymer(substance, size, referenceIds);
+                break;
+            default:
+                chemical(substance, size, referenceIds);
+                break;
+        }
+        return substance;
+    }
+
+    private void chemical(ObjectNode substance, int size, List<String> referenceIds) {
+        int atoms = Math.max(2, size * 2);
+        StringBuilder smiles = new StringBuilder();
+        StringBuilder molfile = new StringBuilder("\n  synthetic\n\n");
+        molfile.append(String.format("%3d%3d  0  0  0  0  0  0  0  0999 V2000%n", atoms, atoms - 1));
+        for (int i = 0; i < atoms; i++) {
+            smiles.append(i % 5 == 4 ? "O" : "C");
+            molfile.append(String.format("%10.4f%10.4f%10.4f %-3s 0  0  0  0  0  0  0  0  0  0  0  0%n",
+                    i * 1.2, (i % 2) * 0.7, 0.0, i % 5 == 4 ? "O" : "C"));
+        }
+        for (int i = 1; i < atoms; i++) {
+            molfile.append(String.format("%3d%3d  1  0  0  0  0%n", i, i + 1));
+        }
+        molfile.append("M  END");
+        ObjectNode structure = substance.putObject("structure");
+        structure.put("uuid", uuid());
+        structure.put("smiles", smiles.toString());
+        structure.put("molfile", molfile.toString());
+        structure.put("formula", "C" + atoms + "H" + (atoms * 2 + 2));
+        structure.put("mwt", atoms * 14.027);
+        structure.put("stereochemistry", "ACHIRAL");
+        structure.put("opticalActivity", "NONE");
+        references(structure, referenceIds);
+        ObjectNode moiety = substance.putArray("moieties").addObject();
+        moiety.put("uuid", uuid());
+        moiety.put("smiles", smiles.toString());
+        moiety.putObject("countAmount").put("average", 1).put("type", "MOL RATIO");
+    }
+
+    private void protein(ObjectNode substance, int size, List<String> referenceIds) {
+        ObjectNode protein = substance.putObject("protein");
+        protein.put("uuid", uuid());
+        protein.put("proteinType", "ENZYME");
+        protein.put("sequenceType", "COMPLETE");
+        ArrayNode subunits = protein.putArray("subunits");
+        for (int i = 0; i < Math.max(1, size / 10); i++) {
+            StringBuilder sequence = new StringBuilder();
+            for (int j = 0; j < size * 30; j++) {
+                sequence.append(AMINO_ACIDS.charAt(random.nextInt(AMINO_ACIDS.length())));
+            }
+            ObjectNode subunit = subunits.addObject();
+            subunit.put("uuid", uuid());
+            subunit.put("subunitIndex", i + 1);
+            subunit.put("sequence", sequence.toString());
+            subunit.put("length", sequence.length());
+        }
+        references(protein, referenceIds);
+    }
+
+    private void mixture(ObjectNode substance, int size, List<String> referenceIds) {
+        ObjectNode mixture = substance.putObject("mixture");
+        mixture.put("uuid", uuid());
+        ArrayNode components = mixture.putArray("components");
+        for (int i = 0; i < Math.max(2, size / 2); i++) {
+            ObjectNode component = components.addObject();
+            component.put("uuid", uuid());
+            component.put("type", i < 2 ? "MUST_BE_PRESENT" : "MAY_BE_PRESENT_ANY_OF");
+            substanceReference(component.putObject("substance"), "COMPONENT " + i);
+        }
+        references(mixture, referenceIds);
+    }
+
+    private void polymer(ObjectNode substance, int size, List<String> referenceIds) {
+        ObjectNode polymer = substance.putObject("polymer");
+        polymer.put("uuid", uuid());
+        polymer.putObject("classification").put("polymerClass", "HOMOPOLYMER").put("polymerGeometry", "LINEAR");
+        ArrayNode monomers = polymer.putArray("monomers");
+        for (int i = 0; i < Math.max(1, size / 2); i++) {
+            ObjectNode monomer = monomers.addObject();
+            monomer.put("uuid", uuid());
+            monomer.put("defining", i == 0);
+            monomer.putObject("amount").put("average", 1.0 + i).put("units", "mol");
+            substanceReference(monomer.putObject("monomerSubstance"), "MONOMER " + i);
+        }
+        ArrayNode units = polymer.putArray("structuralUnits");
+        for (int i = 0; i < Math.max(1, size / 4); i++) {
+            ObjectNode unit = units.addObject();
+            unit.put("label", "A" + i);
+            unit.put("type", "SRU");
+            unit.put("structure", "CC(C)C(=O)O");
+        }
+        references(polymer, referenceIds);
+    }
+
+    private void substanceReference(ObjectNode reference, String name) {
+        reference.put("uuid", uuid());
+        reference.put("refuuid", uuid());
+        reference.put("refPname", name);
+        reference.put("approvalID", approvalId());
+        reference.put("substanceClass", "reference");
+    }
+
+    private void references(ObjectNode element, List<String> referenceIds) {
+        ArrayNode references = element.putArray("references");
+        references.add(referenceIds.get(0));
+        if (referenceIds.size() > 1) {
+            references.add(referenceIds.get(1 + random.nextInt(referenceIds.size() - 1)));
+        }
+    }
+
+    private void audit(ObjectNode element) {
+        element.put("created", 1600000000000L + random.nextInt(1000000));
+        element.put("createdBy", "admin");
+        element.put("lastEdited", 1700000000000L + random.nextInt(1000000));
+        element.put("lastEditedBy", "admin");
+        element.putArray("access");
+    }
+
+    private String uuid() {
+        return new UUID(random.nextLong(), random.nextLong()).toString();
+    }
+
+    private String approvalId() {
+        StringBuilder id = new StringBuilder();
+        for (int i = 0; i < 10; i++) {
+            id.append("ABCDEFGHJKLMNPQRSTUVWXYZ0123456789".charAt(random.nextInt(34)));
+        }
+        return id.toString();
+    }
+
+    private String text(int length) {
+        StringBuilder text = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            text.append(i % 7 == 6 ? ' ' : (char) ('a' + random.nextInt(26)));
+        }
+        return text.toString();
+    }
+}
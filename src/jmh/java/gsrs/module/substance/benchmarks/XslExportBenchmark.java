@@ -0,0 +1,86 @@
+package gsrs.module.substance.benchmarks;
+
+import gsrs.module.substance.exporters.XslExporter;
+
+import ix.ginas.models.v1.Substance;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput and latency of {@link XslExporter#export(Substance)} for every
+ * bundled export template. Run with {@code -prof gc} for the allocation rate.
+ *
+ * @author Egor Puzanov
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class XslExportBenchmark {
+
+    private static final int SUBSTANCES = 64;
+
+    @Param({"export-gsrsp.xsl", "export-gsrs-fhir-json.xsl", "export-ema-fhir-json.xsl"})
+    public String templateFile;
+
+    @Param({"chemical", "protein", "mixture", "polymer"})
+    public String substanceClass;
+
+    @Param({"5", "50"})
+    public int size;
+
+    @Param({"text", "xdm"})
+    public String inputMode;
+
+    private List<Substance> substances;
+    private ByteArrayOutputStream out;
+    private XslExporter exporter;
+    private int next = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        substances = new SyntheticSubstances(42).substances(substanceClass, size, SUBSTANCES);
+        out = new ByteArrayOutputStream(1024 * 1024);
+        exporter = BenchmarkFormats.exporter(out, templateFile);
+        exporter.setInputMode(inputMode);
+    }
+
+    @Setup(Level.Iteration)
+    public void resetOutput() {
+        out.reset();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        exporter.close();
+    }
+
+    @Benchmark
+    public int export() throws IOException {
+        exporter.export(substances.get(next));
+        next = (next + 1) % SUBSTANCES;
+        if (out.size() > 64 * 1024 * 1024) {
+            out.reset();
+        }
+        return out.size();
+    }
+}
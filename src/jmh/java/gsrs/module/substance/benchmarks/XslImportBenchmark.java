@@ -0,0 +1,76 @@
+package gsrs.module.substance.benchmarks;
+
+import gsrs.module.substance.importers.XslImportAdapter;
+
+import ix.ginas.models.v1.Substance;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Throughput and latency of {@link XslImportAdapter#parse} for every bundled
+ * import template, and of the export→import round trip. The input of every
+ * import template is written by the matching export template. Scores are per
+ * substance. Run with {@code -prof gc} for the allocation rate.
+ *
+ * @author Egor Puzanov
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class XslImportBenchmark {
+
+    private static final int SUBSTANCES = 32;
+
+    @Param({"export-gsrsp.xsl", "export-gsrs-fhir-json.xsl", "export-ema-fhir-json.xsl"})
+    public String exportTemplate;
+
+    @Param({"chemical", "protein", "mixture", "polymer"})
+    public String substanceClass;
+
+    @Param({"5", "50"})
+    public int size;
+
+    private List<Substance> substances;
+    private byte[] input;
+    private XslImportAdapter adapter;
+
+    @Setup
+    public void setUp() throws IOException {
+        substances = new SyntheticSubstances(42).substances(substanceClass, size, SUBSTANCES);
+        input = BenchmarkFormats.export(exportTemplate, substances);
+        adapter = BenchmarkFormats.importAdapter(BenchmarkFormats.importTemplate(exportTemplate));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SUBSTANCES)
+    public void parse(Blackhole blackhole) {
+        adapter.parse(new ByteArrayInputStream(input), null, null).forEach(blackhole::consume);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SUBSTANCES)
+    public void roundTrip(Blackhole blackhole) throws IOException {
+        byte[] exported = BenchmarkFormats.export(exportTemplate, substances);
+        adapter.parse(new ByteArrayInputStream(exported), null, null).forEach(blackhole::consume);
+    }
+}
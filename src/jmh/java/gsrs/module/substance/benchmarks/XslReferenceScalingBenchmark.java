@@ -0,0 +1,81 @@
+package gsrs.module.substance.benchmarks;
+
+import gsrs.module.substance.exporters.XslExporter;
+import gsrs.module.substance.importers.XslImportAdapter;
+
+import ix.ginas.models.v1.Substance;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Regression benchmark of the reference index mapping of the GSRSP templates:
+ * the export of a substance with 10, 1000 and 10000 root references, each of
+ * them cited once, and the import of its record. Scores are per substance and
+ * should grow linearly with the number of references.
+ *
+ * @author Egor Puzanov
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class XslReferenceScalingBenchmark {
+
+    private static final String EXPORT_TEMPLATE = "export-gsrsp.xsl";
+
+    @Param({"10", "1000", "10000"})
+    public int references;
+
+    private Substance substance;
+    private byte[] input;
+    private ByteArrayOutputStream out;
+    private XslExporter exporter;
+    private XslImportAdapter adapter;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        substance = new SyntheticSubstances(42).substances("chemical", 5, references, 1).get(0);
+        input = BenchmarkFormats.export(EXPORT_TEMPLATE, Collections.singletonList(substance));
+        out = new ByteArrayOutputStream(1024 * 1024);
+        exporter = BenchmarkFormats.exporter(out, EXPORT_TEMPLATE);
+        adapter = BenchmarkFormats.importAdapter(BenchmarkFormats.importTemplate(EXPORT_TEMPLATE));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        exporter.close();
+    }
+
+    @Benchmark
+    public int export() throws IOException {
+        out.reset();
+        exporter.export(substance);
+        return out.size();
+    }
+
+    @Benchmark
+    public void parse(Blackhole blackhole) {
+        adapter.parse(new ByteArrayInputStream(input), null, null).forEach(blackhole::consume);
+    }
+}
@@ -0,0 +1,130 @@
+package gsrs.module.substance.exporters;
+
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import ix.core.controllers.EntityFactory;
+import ix.ginas.exporters.Exporter;
+import ix.ginas.models.v1.Substance;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.ZipOutputStream;
+
+import lombok.extern.slf4j.Slf4j;
+
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XsltExecutable;
+
+/**
+ * Exports substances through several XSL templates at once into the entries
+ * of one ZIP file.
+ *
+ * <p>Every substance is serialized to JSON once, on the calling thread, and
+ * handed to all parts. Each part transforms the substances on a thread of its
+ * own, in order, into a temporary file; at most 16 substances per part are
+ * queued. When the exporter is closed the temporary files are copied into the
+ * ZIP entries. Gzip compressed parts are stored in the ZIP as they are.</p>
+ *
+ * @author Egor Puzanov
+ */
+@Slf4j
+public class MultiXslExporter implements Exporter<Substance> {
+
+    private final OutputStream out;
+    private final List<XslExportPart> parts = new ArrayList<>();
+    private final ObjectWriter writer =  EntityFactory.EntityMapper.FULL_ENTITY_MAPPER().writer();
+    private String inputMode = "text";
+    private XslJsonProjection projection;
+    private boolean closed = false;
+
+    public MultiXslExporter(OutputStream out, List<PartConfiguration> configurations) throws IOException {
+        this.out = out;
+        try {
+            for (PartConfiguration configuration : configurations) {
+                parts.add(new XslExportPart(configuration));
+            }
+        } catch (IOException | SaxonApiException e) {
+            parts.forEach(XslExportPart::discard);
+            throw e instanceof IOException ? (IOException) e : new IOException(e);
+        }
+    }
+
+    /**
+     * Sets how the substance is passed to the templates, see
+     * {@link XslExporter#setInputMode(String)}.
+     */
+    public void setInputMode(String inputMode) {
+        this.inputMode = inputMode;
+    }
+
+    public String getInputMode() {
+        return inputMode;
+    }
+
+    /**
+     * Sets the fields of the substance JSON passed to the template, see
+     * {@link XslExporter#setProjection(XslJsonProjection)}.
+     */
+    public void setProjection(XslJsonProjection projection) {
+        this.projection = projection;
+    }
+
+    @Override
+    public void export(Substance s) throws IOException {
+        Object json;
+        try {
+            json = XslRecordTransformer.toInput(writer, projection, inputMode, s);
+        } catch (Exception e) {
+            log.error("Unable to serialize substance {} for the XSL export", s.getUuid(), e);
+            return;
+        }
+        for (XslExportPart part : parts) {
+            part.submit(json, s.getUuid());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try (OutputStream target = out) {
+            for (XslExportPart part : parts) {
+                part.finish();
+            }
+            try (ZipOutputStream zip = new ZipOutputStream(target)) {
+                for (XslExportPart part : parts) {
+                    part.writeTo(zip);
+                }
+            }
+        } finally {
+            parts.forEach(XslExportPart::discard);
+        }
+    }
+
+    /**
+     * Template, framing and compression of one ZIP entry.
+     */
+    public static class PartConfiguration {
+
+        final String fileName;
+        final XsltExecutable executable;
+        final String header;
+        final String footer;
+        final String delimiter;
+        final boolean compress;
+
+        public PartConfiguration(String fileName, XsltExecutable executable, String header, String footer,
+                                 String delimiter, boolean compress) {
+            this.fileName = fileName;
+            this.executable = executable;
+            this.header = header;
+            this.footer = footer;
+            this.delimiter = delimiter;
+            this.compress = compress;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package gsrs.module.substance.exporters;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import gsrs.module.substance.xsl.XslTemplateCache;
+
+import ix.ginas.exporters.*;
+import ix.ginas.models.v1.Substance;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import net.sf.saxon.s9api.SaxonApiException;
+
+/**
+ * Factory for {@link MultiXslExporter}s, which export the substances through
+ * several XSL templates in one pass into the entries of a ZIP file.
+ *
+ * @author Egor Puzanov
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class MultiXslExporterFactory implements ExporterFactory<Substance> {
+
+    private OutputFormat format = new OutputFormat("xsl.zip", "Multi-format XSL Export (zip) File");
+    private List<Part> parts = new ArrayList<>();
+    private String inputMode = "text";
+    private List<String> includePaths;
+    private List<String> excludePaths;
+
+    public void setFormat(Map<String, String> m) {
+        this.format = new OutputFormat(m.get("extension"), m.get("displayName"));
+    }
+
+    public void setParts(List<Part> parts) {
+        this.parts = parts;
+    }
+
+    public void setInputMode(String inputMode) {
+        this.inputMode = inputMode;
+    }
+
+    /**
+     * Sets the paths of the substance JSON fields needed by any of the
+     * templates, see {@link XslJsonProjection}.
+     */
+    public void setIncludePaths(List<String> includePaths) {
+        this.includePaths = includePaths;
+    }
+
+    public void setExcludePaths(List<String> excludePaths) {
+        this.excludePaths = excludePaths;
+    }
+
+    @Override
+    public boolean supports(Parameters params) {
+        return params.getFormat().equals(format);
+    }
+
+    @Override
+    public Set<OutputFormat> getSupportedFormats() {
+        return Collections.singleton(format);
+    }
+
+    @Override
+    public Exporter<Substance> createNewExporter(OutputStream out, Parameters params) throws IOException {
+        List<MultiXslExporter.PartConfiguration> configurations = new ArrayList<>();
+        for (Part part : parts) {
+            try {
+                configurations.add(new MultiXslExporter.PartConfiguration(part.getFileName(),
+                        XslTemplateCache.getExecutable(part.templateFile),
+                        part.header, part.footer, part.delimiter, part.shouldCompress));
+            } catch (SaxonApiException e) {
+                throw new IOException(e);
+            }
+        }
+        MultiXslExporter exporter = new MultiXslExporter(out, configurations);
+        exporter.setInputMode(inputMode);
+        XslJsonProjection projection = new XslJsonProjection(includePaths, excludePaths);
+        if (!projection.isEmpty()) {
+            exporter.setProjection(projection);
+        }
+        return exporter;
+    }
+
+    @Override
+    public JsonNode getSchema() {
+        ObjectNode parameters = JsonNodeFactory.instance.objectNode();
+        return parameters;
+    }
+
+    /**
+     * Configuration of one ZIP entry, with the same parameters as the
+     * {@link XslExporterFactory} plus the name of the entry.
+     */
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    public static class Part {
+
+        private String fileName;
+        private String templateFile = "";
+        private String header = "";
+        private String footer = "";
+        private String delimiter = "";
+        private boolean shouldCompress = false;
+
+        public void setFileName(String fileName) {
+            this.fileName = fileName;
+        }
+
+        /**
+         * Returns the entry name, by default the template name with the
+         * extension {@code .json} (and {@code .gz} if compressed).
+         */
+        public String getFileName() {
+            if (fileName != null && !fileName.isEmpty()) {
+                return fileName;
+            }
+            String name = templateFile.replaceAll("^.*[/\\\\]", "").replaceAll("\\.xslt?$", "");
+            return name + (shouldCompress ? ".json.gz" : ".json");
+        }
+
+        /**
+         * Sets the template and compiles it right away, see
+         * {@link XslExporterFactory#setTemplateFile(String)}.
+         */
+        public void setTemplateFile(String templateFile) {
+            try {
+                XslTemplateCache.getExecutable(templateFile);
+            } catch (SaxonApiException | IOException e) {
+                throw new IllegalArgumentException("Failed to compile XSL template: " + templateFile, e);
+            }
+            this.templateFile = templateFile;
+        }
+
+        public void setHeader(String header) {
+            this.header = header;
+        }
+
+        public void setFooter(String footer) {
+            this.footer = footer;
+        }
+
+        public void setDelimiter(String delimiter) {
+            this.delimiter = delimiter;
+        }
+
+        public void setShouldCompress(boolean shouldCompress) {
+            this.shouldCompress = shouldCompress;
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package gsrs.module.substance.exporters;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses a stream into gzip format on several threads.
+ *
+ * <p>The data is cut into blocks of {@code blockSize} bytes which are deflated
+ * concurrently, each into a gzip member of its own, and written in their
+ * original order. A multi-member gzip file is a standard gzip file, so it can
+ * be read by {@code gunzip} or {@link java.util.zip.GZIPInputStream}. Members
+ * whose compressed size fits into 64 KiB carry it in a BGZF style {@code BC}
+ * extra subfield, which allows the importers to decompress the file in
+ * parallel as well; the default block size is chosen so that every member
+ * fits. At most {@code threads * 2} blocks are in flight at a time. Every
+ * worker thread reuses one {@link Deflater}, which it ends when the pool is
+ * shut down on close.</p>
+ *
+ * @author Egor Puzanov
+ */
+public class ParallelGzipOutputStream extends OutputStream {
+
+    public static final int DEFAULT_BLOCK_SIZE = 64000;
+
+    private static final int HEADER_SIZE = 18;
+    private static final int TRAILER_SIZE = 8;
+    private static final int MAX_BGZF_BLOCK_SIZE = 0x10000;
+
+    private final OutputStream out;
+    private final int blockSize;
+    private final int threads;
+    private final int level;
+    private final Deque<Future<byte[]>> pending = new ArrayDeque<>();
+    private final ThreadLocal<Deflater> deflaters = new ThreadLocal<>();
+    private ExecutorService executor;
+    private byte[] block;
+    private int length = 0;
+    private boolean empty = true;
+    private boolean closed = false;
+
+    public ParallelGzipOutputStream(OutputStream out, int blockSize, int threads, int level) {
+        this.out = out;
+        this.blockSize = blockSize > 0 ? blockSize : DEFAULT_BLOCK_SIZE;
+        this.threads = Math.max(threads, 1);
+        this.level = level;
+        this.block = new byte[this.blockSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        while (len > 0) {
+            int n = Math.min(len, blockSize - length);
+            System.arraycopy(b, off, block, length, n);
+            length += n;
+            off += n;
+            len -= n;
+            if (length == blockSize) {
+                submitBlock();
+            }
+        }
+    }
+
+    /**
+     * Writes the blocks which are already compressed. Data of an incomplete
+     * block stays buffered until the block is full or the stream is closed.
+     */
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        while (!pending.isEmpty() && pending.peek().isDone()) {
+            out.write(await(pending.poll()));
+        }
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            if (length > 0 || empty) {
+                submitBlock();
+            }
+            while (!pending.isEmpty()) {
+                out.write(await(pending.poll()));
+            }
+        } finally {
+            closed = true;
+            if (executor != null) {
+                pending.forEach(f -> f.cancel(true));
+                executor.shutdownNow();
+            }
+            out.close();
+        }
+    }
+
+    private void submitBlock() throws IOException {
+        byte[] data = block;
+        int size = length;
+        block = new byte[blockSize];
+        length = 0;
+        empty = false;
+        if (executor == null) {
+            AtomicInteger threadCount = new AtomicInteger();
+            executor = Executors.newFixedThreadPool(threads, r -> {
+                Thread thread = new Thread(() -> {
+                    try {
+                        r.run();
+                    } finally {
+                        endDeflater();
+                    }
+                }, "gzip-deflate-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        pending.add(executor.submit(() -> compress(data, size)));
+        while (pending.size() >= threads * 2) {
+            out.write(await(pending.poll()));
+        }
+    }
+
+    private byte[] compress(byte[] data, int size) {
+        Deflater deflater = deflaters.get();
+        if (deflater == null) {
+            deflater = new Deflater(level, true);
+            deflaters.set(deflater);
+        } else {
+            deflater.reset();
+        }
+        deflater.setInput(data, 0, size);
+        deflater.finish();
+        byte[] member = new byte[HEADER_SIZE + size + size / 8 + 64 + TRAILER_SIZE];
+        int position = HEADER_SIZE;
+        while (!deflater.finished()) {
+            if (position == member.length - TRAILER_SIZE) {
+                member = Arrays.copyOf(member, member.length * 2);
+            }
+            position += deflater.deflate(member, position, member.length - TRAILER_SIZE - position);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, size);
+        writeInt(member, position, (int) crc.getValue());
+        writeInt(member, position + 4, size);
+        int memberSize = position + TRAILER_SIZE;
+        if (memberSize <= MAX_BGZF_BLOCK_SIZE) {
+            writeHeader(member, memberSize);
+            return Arrays.copyOf(member, memberSize);
+        }
+        // too large for a BGZF block size: write a plain member without extra field
+        byte[] plain = new byte[memberSize - 8];
+        System.arraycopy(member, HEADER_SIZE, plain, 10, memberSize - HEADER_SIZE);
+        writeHeader(plain, -1);
+        return plain;
+    }
+
+    private void endDeflater() {
+        Deflater deflater = deflaters.get();
+        if (deflater != null) {
+            deflater.end();
+            deflaters.remove();
+        }
+    }
+
+    private void writeHeader(byte[] member, int memberSize) {
+        member[0] = 0x1F;
+        member[1] = (byte) 0x8B;
+        member[2] = Deflater.DEFLATED;
+        member[3] = (byte) (memberSize > 0 ? 4 : 0);
+        // mtime 0, extra flags
+        member[8] = (byte) (level == Deflater.BEST_COMPRESSION ? 2 : level == Deflater.BEST_SPEED ? 4 : 0);
+        member[9] = (byte) 0xFF;
+        if (memberSize > 0) {
+            writeShort(member, 10, 6);
+            member[12] = 'B';
+            member[13] = 'C';
+            writeShort(member, 14, 2);
+            writeShort(member, 16, memberSize - 1);
+        }
+    }
+
+    private byte[] await(Future<byte[]> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing GZIP output");
+        } catch (ExecutionException e) {
+            throw new IOException("Unable to compress GZIP output", e.getCause());
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+    }
+
+    private static void writeShort(byte[] b, int off, int value) {
+        b[off] = (byte) value;
+        b[off + 1] = (byte) (value >>> 8);
+    }
+
+    private static void writeInt(byte[] b, int off, int value) {
+        writeShort(b, off, value);
+        writeShort(b, off + 2, value >>> 16);
+    }
+}
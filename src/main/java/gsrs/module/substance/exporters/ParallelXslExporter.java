@@ -0,0 +1,209 @@
+package gsrs.module.substance.exporters;
+
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import ix.core.controllers.EntityFactory;
+import ix.ginas.exporters.Exporter;
+import ix.ginas.models.v1.Substance;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import lombok.extern.slf4j.Slf4j;
+
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XsltExecutable;
+
+/**
+ * Exports substances through an XSL template on several threads.
+ *
+ * <p>The substance is serialized to JSON on the calling thread, because lazy
+ * loaded entity associations can only be resolved there. The transformation
+ * runs on a pool of worker threads, each with its own
+ * {@link XslRecordTransformer} loaded from the shared executable, and a single
+ * writer thread writes the results with their delimiters in submission order.
+ * At most {@code threads * 4} substances are in flight; {@link #export} blocks
+ * while this limit is reached. A substance which fails to serialize or
+ * transform is logged and left out; the number of such substances is
+ * reported when the exporter is closed.</p>
+ *
+ * @author Egor Puzanov
+ */
+@Slf4j
+public class ParallelXslExporter implements Exporter<Substance> {
+
+    private static final Future<byte[]> END = CompletableFuture.completedFuture(null);
+
+    private final OutputStream out;
+    private final byte[] footer;
+    private final byte[] delimiter;
+    private final ObjectWriter writer =  EntityFactory.EntityMapper.FULL_ENTITY_MAPPER().writer();
+    private final ThreadLocal<XslRecordTransformer> transformers;
+    private final ExecutorService workers;
+    private final BlockingQueue<Future<byte[]>> results;
+    private final Thread writerThread;
+    private volatile IOException writeError;
+    private final AtomicInteger failures = new AtomicInteger();
+    private String inputMode = "text";
+    private XslJsonProjection projection;
+    private boolean closed = false;
+
+    public ParallelXslExporter(OutputStream out, XsltExecutable executable, String header, String footer,
+                               String delimiter, int threads) throws IOException {
+        this.out = out;
+        this.footer = footer.getBytes(StandardCharsets.UTF_8);
+        this.delimiter = delimiter.getBytes(StandardCharsets.UTF_8);
+
+        out.write(header.getBytes(StandardCharsets.UTF_8));
+
+        this.transformers = ThreadLocal.withInitial(() -> {
+            try {
+                return new XslRecordTransformer(executable);
+            } catch (SaxonApiException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        AtomicInteger threadCount = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "xsl-export-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.results = new ArrayBlockingQueue<>(threads * 4);
+        this.writerThread = new Thread(this::writeResults, "xsl-export-writer");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    /**
+     * Sets how the substance is passed to the template, see
+     * {@link XslExporter#setInputMode(String)}.
+     */
+    public void setInputMode(String inputMode) {
+        this.inputMode = inputMode;
+    }
+
+    public String getInputMode() {
+        return inputMode;
+    }
+
+    /**
+     * Sets the fields of the substance JSON passed to the template, see
+     * {@link XslExporter#setProjection(XslJsonProjection)}.
+     */
+    public void setProjection(XslJsonProjection projection) {
+        this.projection = projection;
+    }
+
+    @Override
+    public void export(Substance s) throws IOException {
+        checkWriteError();
+        Object json;
+        try {
+            json = XslRecordTransformer.toInput(writer, projection, inputMode, s);
+        } catch (Exception e) {
+            failures.incrementAndGet();
+            log.error("Unable to serialize substance {} for the XSL export", s.getUuid(), e);
+            return;
+        }
+        UUID uuid = s.getUuid();
+        put(workers.submit(() -> transform(json, uuid)));
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            put(END);
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            writerThread.interrupt();
+            throw new InterruptedIOException("Interrupted while finishing the XSL export");
+        } finally {
+            workers.shutdownNow();
+        }
+        if (writeError == null) {
+            out.write(footer);
+        }
+        out.close();
+        if (failures.get() > 0) {
+            log.warn("{} substances failed and were left out of the XSL export", failures.get());
+        }
+        checkWriteError();
+    }
+
+    private byte[] transform(Object json, UUID uuid) {
+        try {
+            return transformers.get().transformInput(json).toByteArray();
+        } catch (Exception e) {
+            failures.incrementAndGet();
+            log.error("Unable to transform substance {} with the XSL template", uuid, e);
+            return null;
+        }
+    }
+
+    private void put(Future<byte[]> result) throws IOException {
+        try {
+            results.put(result);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while exporting substances");
+        }
+    }
+
+    private void writeResults() {
+        int row = 0;
+        while (true) {
+            Future<byte[]> result;
+            try {
+                result = results.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (result == END) {
+                return;
+            }
+            if (writeError != null) {
+                continue;
+            }
+            try {
+                byte[] record = result.get();
+                if (record == null) {
+                    continue;
+                }
+                if (row > 0) {
+                    out.write(delimiter);
+                }
+                row = row + 1;
+                out.write(record);
+            } catch (IOException e) {
+                writeError = e;
+            } catch (ExecutionException e) {
+                writeError = new IOException("Unable to transform substance", e.getCause());
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void checkWriteError() throws IOException {
+        if (writeError != null) {
+            throw writeError;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package gsrs.module.substance.exporters;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import ix.core.controllers.EntityFactory;
+import ix.ginas.exporters.Exporter;
+import ix.ginas.models.v1.Substance;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import lombok.extern.slf4j.Slf4j;
+
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XsltExecutable;
+
+/**
+ * Exports substances through one XSL template into several part files of a
+ * ZIP file.
+ *
+ * <p>Every substance is serialized to JSON on the calling thread and handed
+ * to one of the parts, chosen by the hash of the substance UUID
+ * ({@code shardBy} {@code uuid}) or in turn ({@code count}). The parts
+ * transform their substances concurrently, each with its own header and
+ * footer, so that every part is a complete document. When the exporter is
+ * closed the parts are copied into the ZIP entries {@code part-0001.<name>},
+ * followed by {@code index.json} listing the entries and their number of
+ * records. Parts without records are left out, since a header directly
+ * followed by the footer is not always a valid document.</p>
+ *
+ * @author Egor Puzanov
+ */
+@Slf4j
+public class ShardedXslExporter implements Exporter<Substance> {
+
+    public static final String SHARD_BY_UUID = "uuid";
+    public static final String SHARD_BY_COUNT = "count";
+    public static final String INDEX_FILE = "index.json";
+
+    private final OutputStream out;
+    private final List<XslExportPart> parts = new ArrayList<>();
+    private final boolean byUuid;
+    private final ObjectWriter writer =  EntityFactory.EntityMapper.FULL_ENTITY_MAPPER().writer();
+    private String inputMode = "text";
+    private XslJsonProjection projection;
+    private long row = 0;
+    private boolean closed = false;
+
+    public ShardedXslExporter(OutputStream out, XsltExecutable executable, String header, String footer,
+                              String delimiter, boolean compress, String fileName, int shards, String shardBy)
+            throws IOException {
+        this.out = out;
+        this.byUuid = SHARD_BY_UUID.equalsIgnoreCase(shardBy);
+        try {
+            for (int i = 0; i < shards; i++) {
+                parts.add(new XslExportPart(new MultiXslExporter.PartConfiguration(
+                        String.format("part-%04d.%s", i + 1, fileName), executable, header, footer, delimiter,
+                        compress)));
+            }
+        } catch (IOException | SaxonApiException e) {
+            parts.forEach(XslExportPart::discard);
+            throw e instanceof IOException ? (IOException) e : new IOException(e);
+        }
+    }
+
+    /**
+     * Sets how the substance is passed to the template, see
+     * {@link XslExporter#setInputMode(String)}.
+     */
+    public void setInputMode(String inputMode) {
+        this.inputMode = inputMode;
+    }
+
+    public String getInputMode() {
+        return inputMode;
+    }
+
+    /**
+     * Sets the fields of the substance JSON passed to the template, see
+     * {@link XslExporter#setProjection(XslJsonProjection)}.
+     */
+    public void setProjection(XslJsonProjection projection) {
+        this.projection = projection;
+    }
+
+    @Override
+    public void export(Substance s) throws IOException {
+        Object json;
+        try {
+            json = XslRecordTransformer.toInput(writer, projection, inputMode, s);
+        } catch (Exception e) {
+            log.error("Unable to serialize substance {} for the XSL export", s.getUuid(), e);
+            return;
+        }
+        parts.get(shard(s)).submit(json, s.getUuid());
+    }
+
+    private int shard(Substance s) {
+        if (byUuid && s.getUuid() != null) {
+            return Math.floorMod(s.getUuid().hashCode(), parts.size());
+        }
+        return (int) (row++ % parts.size());
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try (OutputStream target = out) {
+            for (XslExportPart part : parts) {
+                part.finish();
+            }
+            ObjectMapper mapper = new ObjectMapper();
+            ObjectNode index = mapper.createObjectNode();
+            index.put("shardBy", byUuid ? SHARD_BY_UUID : SHARD_BY_COUNT);
+            ArrayNode entries = index.putArray("parts");
+            try (ZipOutputStream zip = new ZipOutputStream(target)) {
+                for (XslExportPart part : parts) {
+                    if (part.getRecords() == 0) {
+                        continue;
+                    }
+                    part.writeTo(zip);
+                    entries.addObject()
+                            .put("fileName", part.getFileName())
+                            .put("records", part.getRecords());
+                }
+                zip.putNextEntry(new ZipEntry(INDEX_FILE));
+                zip.write(mapper.writerWithDefaultPrettyPrinter().writeValueAsBytes(index));
+                zip.closeEntry();
+            }
+        } finally {
+            parts.forEach(XslExportPart::discard);
+        }
+    }
+}
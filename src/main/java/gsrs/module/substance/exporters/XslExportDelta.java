@@ -0,0 +1,328 @@
+package gsrs.module.substance.exporters;
+
+import ix.ginas.models.v1.Substance;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Manifest of a previous export which lets an {@link XslExporter} skip the
+ * transformation of unchanged substances.
+ *
+ * <p>The delta directory holds {@code manifest.tsv}, with one line of
+ * substance UUID, version, last edited time, SHA-256 hash of the transformed
+ * record, and offset and length of the record in the records file named in
+ * the manifest header, which holds the transformed records of the previous
+ * export. Every export writes a new records file, so replacing the manifest
+ * commits the export atomically. A substance whose version and last edited
+ * time are unchanged is not serialized nor transformed again, its previous
+ * record is reused. The manifest is bound to the hash of the template; a
+ * changed template invalidates it.</p>
+ *
+ * <p>In the {@code full} mode every substance is written to the export, in
+ * the {@code changed} mode only substances whose transformed record is new or
+ * differs from the previous one. The UUIDs of substances of the previous
+ * export which were not exported again are written to {@code deleted.txt},
+ * so the delta mode is meant for exports of all substances; the
+ * {@link XslExporterFactory} uses it only for its dedicated delta format.
+ * A substance which fails to transform keeps its previous entry. The new
+ * manifest replaces the previous one only when the export is committed.</p>
+ *
+ * @author Egor Puzanov
+ */
+public class XslExportDelta implements Closeable {
+
+    public static final String MODE_FULL = "full";
+    public static final String MODE_CHANGED = "changed";
+
+    private static final String MANIFEST = "manifest.tsv";
+    private static final String DELETED = "deleted.txt";
+    private static final String TEMPLATE_PREFIX = "#template\t";
+    private static final String RECORDS_PREFIX = "#records\t";
+
+    private final File directory;
+    private final boolean full;
+    private final String templateHash;
+    private final FileChannel lockChannel;
+    private final FileLock lock;
+    private final Map<String, Entry> previous = new HashMap<>();
+    private final Set<String> exported = new HashSet<>();
+    private final FileChannel previousRecords;
+    private File previousRecordsFile;
+    private final File newManifestFile;
+    private final File newRecordsFile;
+    private final Writer newManifest;
+    private final OutputStream newRecords;
+    private final MessageDigest digest;
+    private long newOffset = 0;
+    private boolean committed = false;
+    private boolean closed = false;
+
+    public XslExportDelta(File directory, String mode, String templateHash) throws IOException {
+        this.directory = directory;
+        this.full = !MODE_CHANGED.equalsIgnoreCase(mode);
+        this.templateHash = templateHash;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create delta export directory: " + directory);
+        }
+        lockChannel = FileChannel.open(new File(directory, MANIFEST + ".lock").toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock acquired;
+        try {
+            acquired = lockChannel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            acquired = null;
+        }
+        if (acquired == null) {
+            lockChannel.close();
+            throw new IOException("Another delta export is running in " + directory);
+        }
+        lock = acquired;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        if (readManifest(new File(directory, MANIFEST)) && previousRecordsFile.isFile()) {
+            previousRecords = FileChannel.open(previousRecordsFile.toPath(), StandardOpenOption.READ);
+        } else {
+            previous.clear();
+            previousRecords = null;
+        }
+        newManifestFile = new File(directory, MANIFEST + ".new");
+        newRecordsFile = new File(directory, "records-" + System.currentTimeMillis() + ".dat");
+        newManifest = Files.newBufferedWriter(newManifestFile.toPath(), StandardCharsets.UTF_8);
+        newManifest.write(TEMPLATE_PREFIX + templateHash + "\n");
+        newManifest.write(RECORDS_PREFIX + newRecordsFile.getName() + "\n");
+        newRecords = new BufferedOutputStream(new FileOutputStream(newRecordsFile), 64 * 1024);
+    }
+
+    public boolean isFull() {
+        return full;
+    }
+
+    /**
+     * Returns the previous record of the substance if its version and last
+     * edited time did not change, and keeps it for the next export;
+     * otherwise returns {@code null}.
+     */
+    public byte[] reuse(Substance substance) throws IOException {
+        String uuid = uuid(substance);
+        Entry entry = uuid == null ? null : previous.get(uuid);
+        if (entry == null || !entry.version.equals(version(substance)) || entry.lastEdited != lastEdited(substance)) {
+            return null;
+        }
+        byte[] record = read(entry);
+        if (record != null) {
+            write(uuid, entry.version, entry.lastEdited, record, entry.hash);
+        }
+        return record;
+    }
+
+    /**
+     * Keeps the previous entry of a substance whose transformation failed, so
+     * that the substance is not reported as deleted and is transformed again
+     * by the next export.
+     */
+    public void carryForward(Substance substance) throws IOException {
+        String uuid = uuid(substance);
+        Entry entry = uuid == null ? null : previous.get(uuid);
+        if (entry == null) {
+            return;
+        }
+        byte[] record = read(entry);
+        if (record != null) {
+            write(uuid, entry.version, entry.lastEdited, record, entry.hash);
+        }
+    }
+
+    /**
+     * Keeps the new record of the substance for the next export and returns
+     * whether it differs from the previous one.
+     */
+    public boolean update(Substance substance, byte[] bytes) throws IOException {
+        String uuid = uuid(substance);
+        if (uuid == null) {
+            return true;
+        }
+        String hash = hex(digest.digest(bytes));
+        write(uuid, version(substance), lastEdited(substance), bytes, hash);
+        Entry entry = previous.get(uuid);
+        return entry == null || !entry.hash.equals(hash);
+    }
+
+    /**
+     * Writes the list of deleted substances and replaces the previous manifest
+     * and records with the new ones.
+     */
+    public void commit() throws IOException {
+        newManifest.close();
+        newRecords.close();
+        if (previousRecords != null) {
+            previousRecords.close();
+        }
+        Path deleted = new File(directory, DELETED).toPath();
+        try (Writer writer = Files.newBufferedWriter(deleted, StandardCharsets.UTF_8)) {
+            for (String uuid : previous.keySet()) {
+                if (!exported.contains(uuid)) {
+                    writer.write(uuid);
+                    writer.write('\n');
+                }
+            }
+        }
+        move(newManifestFile, new File(directory, MANIFEST));
+        if (previousRecordsFile != null && !previousRecordsFile.equals(newRecordsFile)) {
+            Files.deleteIfExists(previousRecordsFile.toPath());
+        }
+        committed = true;
+        close();
+    }
+
+    /**
+     * Releases the delta directory; the previous manifest stays in place if
+     * the export was not committed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            newManifest.close();
+            newRecords.close();
+            if (previousRecords != null) {
+                previousRecords.close();
+            }
+            if (!committed) {
+                Files.deleteIfExists(newManifestFile.toPath());
+                Files.deleteIfExists(newRecordsFile.toPath());
+            }
+        } finally {
+            lock.release();
+            lockChannel.close();
+        }
+    }
+
+    private byte[] read(Entry entry) throws IOException {
+        if (previousRecords == null) {
+            return null;
+        }
+        byte[] record = new byte[entry.length];
+        ByteBuffer target = ByteBuffer.wrap(record);
+        long position = entry.offset;
+        while (target.hasRemaining()) {
+            int n = previousRecords.read(target, position);
+            if (n < 0) {
+                return null;
+            }
+            position += n;
+        }
+        return record;
+    }
+
+    private void write(String uuid, String version, long lastEdited, byte[] record, String hash)
+            throws IOException {
+        if (!exported.add(uuid)) {
+            return;
+        }
+        newRecords.write(record);
+        newManifest.write(uuid + "\t" + version + "\t" + lastEdited + "\t" + hash
+                + "\t" + newOffset + "\t" + record.length + "\n");
+        newOffset += record.length;
+    }
+
+    private boolean readManifest(File manifest) throws IOException {
+        if (!manifest.isFile()) {
+            return false;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(manifest.toPath(), StandardCharsets.UTF_8)) {
+            String line = reader.readLine();
+            if (line == null || !line.equals(TEMPLATE_PREFIX + templateHash)) {
+                return false;
+            }
+            line = reader.readLine();
+            if (line == null || !line.startsWith(RECORDS_PREFIX)) {
+                return false;
+            }
+            previousRecordsFile = new File(directory, line.substring(RECORDS_PREFIX.length()));
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", -1);
+                if (fields.length == 6) {
+                    previous.put(fields[0], new Entry(fields[1], Long.parseLong(fields[2]), fields[3],
+                            Long.parseLong(fields[4]), Integer.parseInt(fields[5])));
+                }
+            }
+        }
+        return true;
+    }
+
+    private static void move(File source, File target) throws IOException {
+        try {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static String uuid(Substance substance) {
+        return substance.getUuid() == null ? null : substance.getUuid().toString();
+    }
+
+    private static String version(Substance substance) {
+        return substance.getVersion() == null ? "" : substance.getVersion().replaceAll("\\s", " ");
+    }
+
+    private static long lastEdited(Substance substance) {
+        Date lastEdited = substance.getLastEdited();
+        return lastEdited == null ? 0L : lastEdited.getTime();
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    private static class Entry {
+        private final String version;
+        private final long lastEdited;
+        private final String hash;
+        private final long offset;
+        private final int length;
+
+        private Entry(String version, long lastEdited, String hash, long offset, int length) {
+            this.version = version;
+            this.lastEdited = lastEdited;
+            this.hash = hash;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
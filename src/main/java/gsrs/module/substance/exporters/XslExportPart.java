@@ -0,0 +1,180 @@
+package gsrs.module.substance.exporters;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import lombok.extern.slf4j.Slf4j;
+
+import net.sf.saxon.s9api.SaxonApiException;
+
+/**
+ * One ZIP entry of a {@link MultiXslExporter} or {@link ShardedXslExporter}.
+ *
+ * <p>The part transforms the submitted substance JSON on a thread of its own,
+ * in order, into a temporary file with its own header and footer; at most 16
+ * substances are queued. A substance which fails to transform is logged and
+ * left out of the part.</p>
+ *
+ * @author Egor Puzanov
+ */
+@Slf4j
+class XslExportPart {
+
+    private static final int QUEUE_SIZE = 16;
+
+    private final MultiXslExporter.PartConfiguration configuration;
+    private final byte[] footer;
+    private final byte[] delimiter;
+    private final XslRecordTransformer transformer;
+    private final File file;
+    private final CheckedOutputStream checked;
+    private final OutputStream stream;
+    private final ExecutorService executor;
+    private final Semaphore queue = new Semaphore(QUEUE_SIZE);
+    private volatile IOException error;
+    private int row = 0;
+
+    XslExportPart(MultiXslExporter.PartConfiguration configuration) throws IOException, SaxonApiException {
+        this.configuration = configuration;
+        this.footer = configuration.footer.getBytes(StandardCharsets.UTF_8);
+        this.delimiter = configuration.delimiter.getBytes(StandardCharsets.UTF_8);
+        this.transformer = new XslRecordTransformer(configuration.executable);
+        this.file = File.createTempFile("xsl-export-", ".part");
+        this.checked = new CheckedOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024),
+                new CRC32());
+        this.stream = configuration.compress ? new GZIPOutputStream(checked, 64 * 1024) : checked;
+        this.stream.write(configuration.header.getBytes(StandardCharsets.UTF_8));
+        this.executor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "xsl-export-" + configuration.fileName);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    void submit(Object json, UUID uuid) throws IOException {
+        checkError();
+        try {
+            queue.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while exporting substances");
+        }
+        executor.execute(() -> {
+            try {
+                write(json, uuid);
+            } catch (IOException e) {
+                error = e;
+            } finally {
+                queue.release();
+            }
+        });
+    }
+
+    private void write(Object json, UUID uuid) throws IOException {
+        if (error != null) {
+            return;
+        }
+        ByteArrayOutputStream buffer;
+        try {
+            buffer = transformer.transformInput(json);
+        } catch (Exception e) {
+            log.error("Unable to transform substance {} for {}", uuid, configuration.fileName, e);
+            return;
+        }
+        if (row > 0) {
+            stream.write(delimiter);
+        }
+        row = row + 1;
+        buffer.writeTo(stream);
+    }
+
+    void finish() throws IOException {
+        executor.shutdown();
+        try {
+            while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                // wait for the queued substances
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while finishing the XSL export");
+        }
+        checkError();
+        stream.write(footer);
+        stream.close();
+    }
+
+    /**
+     * Returns the number of records written to the part.
+     */
+    int getRecords() {
+        return row;
+    }
+
+    String getFileName() {
+        return configuration.fileName;
+    }
+
+    /**
+     * Copies the finished part into a new entry of the ZIP file.
+     */
+    void writeTo(ZipOutputStream zip) throws IOException {
+        zip.putNextEntry(zipEntry());
+        Files.copy(file.toPath(), zip);
+        zip.closeEntry();
+    }
+
+    private ZipEntry zipEntry() {
+        ZipEntry entry = new ZipEntry(configuration.fileName);
+        if (configuration.compress) {
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(file.length());
+            entry.setCompressedSize(file.length());
+            entry.setCrc(checked.getChecksum().getValue());
+        }
+        return entry;
+    }
+
+    private void checkError() throws IOException {
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * Stops the part and deletes its temporary file; also called for parts
+     * which did not finish.
+     */
+    void discard() {
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            stream.close();
+        } catch (IOException e) {
+            // already failed, the file is removed anyway
+        }
+        if (!file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+}
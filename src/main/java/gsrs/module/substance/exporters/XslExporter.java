@@ -2,88 +2,261 @@ package gsrs.module.substance.exporters;
 
 import com.fasterxml.jackson.databind.ObjectWriter;
 
+import gsrs.module.substance.xsl.XslTemplateCache;
+import gsrs.module.substance.xsl.XslTemplateProfiler;
+
 import ix.core.controllers.EntityFactory;
 import ix.ginas.exporters.*;
 import ix.ginas.models.v1.Substance;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.function.LongSupplier;
 
-import javax.xml.transform.stream.StreamSource;
+import lombok.extern.slf4j.Slf4j;
 
 import net.sf.saxon.s9api.*;
 
 
+/**
+ * Exports substances through an XSL template.
+ *
+ * <p>Every substance is transformed by one reused {@link XslRecordTransformer}.
+ * The record is copied to the output only if the transformation
+ * succeeded. With an {@link XslExportDelta} unchanged substances are not
+ * transformed again, with an {@link XslOutputCache} substances exported
+ * before in the same version are copied from the cache.</p>
+ */
+@Slf4j
 public class XslExporter implements Exporter<Substance> {
 
     private final OutputStream out;
-    private final String footer;
-    private final String delimiter;
-    private final Processor processor;
-    private final XsltTransformer transformer;
+    private final byte[] footer;
+    private final byte[] delimiter;
+    private final XslRecordTransformer transformer;
     private final ObjectWriter writer =  EntityFactory.EntityMapper.FULL_ENTITY_MAPPER().writer();
+    private String inputMode = "text";
+    private XslJsonProjection projection;
+    private XslExportDelta delta;
+    private LongSupplier deltaTotal;
+    private long exported = 0;
+    private boolean complete = false;
+    private boolean failed = false;
+    private XslOutputCache cache;
+    private String templateHash;
+    private byte[] chunk;
+    private XslTemplateProfiler profiler;
+    private File profileDirectory;
     private int row=0;
 
     public XslExporter(OutputStream out, String templateFile, String header, String footer, String delimiter)
             throws SaxonApiException, IOException {
+        this(out, XslTemplateCache.getExecutable(templateFile), header, footer, delimiter);
+    }
+
+    public XslExporter(OutputStream out, XsltExecutable executable, String header, String footer, String delimiter)
+            throws SaxonApiException, IOException {
 
         this.out = out;
-        this.footer = footer;
-        this.delimiter = delimiter;
+        this.footer = footer.getBytes(StandardCharsets.UTF_8);
+        this.delimiter = delimiter.getBytes(StandardCharsets.UTF_8);
 
         out.write(header.getBytes(StandardCharsets.UTF_8));
 
-        processor = new Processor(false);
-        XsltCompiler compiler = processor.newXsltCompiler();
+        transformer = new XslRecordTransformer(executable);
+    }
 
-        InputStream templateStream = Thread.currentThread().getContextClassLoader().getResourceAsStream(templateFile);
-        if (templateStream == null) {
-            File f = new File(templateFile);
-            if (f.exists()) {
-                templateStream = new FileInputStream(f);
-            } else {
-                throw new IOException("XSL template not found on classpath or filesystem: " + templateFile);
-            }
-        }
-        XsltExecutable executable = compiler.compile(
-            new StreamSource(templateStream)
-        );
+    /**
+     * Sets how the substance is passed to the template: {@code text} passes
+     * the serialized JSON as the {@code json-input} parameter, {@code xdm}
+     * builds the {@code fn:json-to-xml} tree directly from the Jackson token
+     * stream and passes it as the {@code json-xml} parameter.
+     */
+    public void setInputMode(String inputMode) {
+        this.inputMode = inputMode;
+    }
+
+    public String getInputMode() {
+        return inputMode;
+    }
+
+    /**
+     * Sets the fields of the substance JSON passed to the template, see
+     * {@link XslJsonProjection}; by default all fields are passed.
+     */
+    public void setProjection(XslJsonProjection projection) {
+        this.projection = projection;
+    }
+
+    /**
+     * Enables the delta mode: unchanged substances reuse their record from the
+     * previous export, see {@link XslExportDelta}. The delta is committed when
+     * the exporter is closed after a complete export, i.e. after
+     * {@link #complete()} or once at least {@code total} substances were
+     * exported; a failed, interrupted or partial export keeps the previous
+     * manifest.
+     *
+     * @param total the number of all substances, or {@code null} if only
+     *              {@link #complete()} ends the export
+     */
+    public void setDelta(XslExportDelta delta, LongSupplier total) {
+        this.delta = delta;
+        this.deltaTotal = total;
+    }
 
-        transformer = executable.load();
+    /**
+     * Signals that all substances were exported, so that the delta is
+     * committed on close unless an export failed.
+     */
+    public void complete() {
+        this.complete = true;
+    }
 
-        XdmNode sourceNode = processor.newDocumentBuilder()
-            .build(new StreamSource(new StringReader("<root/>")));
+    /**
+     * Enables the output cache: records are looked up by substance UUID,
+     * version and the hash of the template, see {@link XslOutputCache}.
+     */
+    public void setCache(XslOutputCache cache, String templateHash) {
+        this.cache = cache;
+        this.templateHash = templateHash;
+    }
 
-        transformer.setInitialContextNode(sourceNode);
+    /**
+     * Attaches the profiler to the transformations and writes its report
+     * into the directory when the exporter is closed. The exporter should
+     * use an executable compiled for profiling, see
+     * {@link XslTemplateCache#getProfiledExecutable(String, boolean)}.
+     */
+    public void setProfiler(XslTemplateProfiler profiler, File profileDirectory) {
+        this.profiler = profiler;
+        this.profileDirectory = profileDirectory;
+        transformer.setTraceListener(profiler);
     }
 
     @Override
     public void export(Substance s) throws IOException {
-        if (row > 0) {
-            out.write(delimiter.getBytes(StandardCharsets.UTF_8));
+        try {
+            exported++;
+            exportSubstance(s);
+        } catch (IOException | RuntimeException e) {
+            failed = true;
+            throw e;
         }
+    }
 
-        row = row + 1;
+    private void exportSubstance(Substance s) throws IOException {
+        if (delta != null) {
+            byte[] previous = delta.reuse(s);
+            if (previous != null) {
+                if (delta.isFull()) {
+                    writeRecord(previous);
+                }
+                return;
+            }
+        }
+
+        String key = cache == null ? null : XslOutputCache.key(s.getUuid(), s.getVersion(), templateHash);
+        if (key != null) {
+            ByteBuffer cached = cache.get(key);
+            if (cached != null) {
+                if (delta == null) {
+                    writeRecord(cached);
+                    return;
+                }
+                byte[] record = new byte[cached.remaining()];
+                cached.get(record);
+                if (delta.update(s, record) || delta.isFull()) {
+                    writeRecord(record);
+                }
+                return;
+            }
+        }
 
+        ByteArrayOutputStream buffer;
         try {
-            transformer.setParameter(
-                new QName("json-input"),
-                XdmAtomicValue.makeAtomicValue(writer.writeValueAsString(s))
-            );
-            Serializer serializer = processor.newSerializer(out);
-            serializer.setOutputProperty(Serializer.Property.METHOD, "text");
-            transformer.setDestination(serializer);
-            transformer.transform();
+            buffer = transformer.transformInput(XslRecordTransformer.toInput(writer, projection, inputMode, s));
         } catch (Exception e) {
             e.printStackTrace();
+            if (delta != null) {
+                delta.carryForward(s);
+            }
+            return;
         }
+
+        if (key != null || delta != null) {
+            byte[] record = buffer.toByteArray();
+            if (key != null) {
+                cache.put(key, record, 0, record.length);
+            }
+            if (delta != null && !delta.update(s, record) && !delta.isFull()) {
+                return;
+            }
+        }
+        if (row > 0) {
+            out.write(delimiter);
+        }
+        row = row + 1;
+        buffer.writeTo(out);
+    }
+
+    private void writeRecord(byte[] record) throws IOException {
+        if (row > 0) {
+            out.write(delimiter);
+        }
+        row = row + 1;
+        out.write(record);
+    }
+
+    private void writeRecord(ByteBuffer record) throws IOException {
+        if (row > 0) {
+            out.write(delimiter);
+        }
+        row = row + 1;
+        if (chunk == null) {
+            chunk = new byte[64 * 1024];
+        }
+        while (record.hasRemaining()) {
+            int n = Math.min(chunk.length, record.remaining());
+            record.get(chunk, 0, n);
+            out.write(chunk, 0, n);
+        }
+    }
+
+    private boolean isDeltaComplete() {
+        if (failed || Thread.currentThread().isInterrupted()) {
+            log.warn("Delta export failed or was interrupted; keeping the previous manifest");
+            return false;
+        }
+        if (complete) {
+            return true;
+        }
+        long total = deltaTotal != null ? deltaTotal.getAsLong() : -1;
+        if (total < 0 || exported < total) {
+            log.warn("Delta export of {} substances is not an export of all {} substances; keeping the previous manifest",
+                    exported, total < 0 ? "(unknown)" : total);
+            return false;
+        }
+        return true;
     }
 
     @Override
     public void close() throws IOException {
-        out.write(footer.getBytes(StandardCharsets.UTF_8));
-        out.close();
+        try {
+            out.write(footer);
+            out.close();
+            if (delta != null && isDeltaComplete()) {
+                delta.commit();
+            }
+        } finally {
+            if (delta != null) {
+                delta.close();
+            }
+            if (profiler != null) {
+                profiler.writeReportQuietly(profileDirectory);
+            }
+        }
     }
 
 }
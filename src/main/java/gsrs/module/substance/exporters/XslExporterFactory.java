@@ -5,9 +5,17 @@ import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
+import gsrs.module.substance.repository.SubstanceRepository;
+import gsrs.module.substance.xsl.XslTemplateCache;
+import gsrs.module.substance.xsl.XslTemplateProfiler;
+import gsrs.springUtils.StaticContextAccessor;
+
 import ix.ginas.exporters.*;
 import ix.ginas.models.v1.Substance;
 
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.Arrays;
@@ -17,12 +25,17 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.stream.Collectors;
+import java.util.zip.Deflater;
 import java.util.zip.GZIPOutputStream;
 
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XsltExecutable;
+
 /**
  * Created by Egor Puzanov.
  */
 
+@Slf4j
 @JsonIgnoreProperties(ignoreUnknown = true)
 public class XslExporterFactory implements ExporterFactory<Substance> {
 
@@ -32,12 +45,39 @@ public class XslExporterFactory implements ExporterFactory<Substance> {
     private String footer = "";
     private String delimiter = "";
     private boolean shouldCompress = false;
+    private String inputMode = "text";
+    private int exportThreads = 1;
+    private int compressionThreads = 1;
+    private int compressionBlockSize = ParallelGzipOutputStream.DEFAULT_BLOCK_SIZE;
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+    private OutputFormat deltaFormat;
+    private String deltaMode;
+    private File deltaDirectory;
+    private String cacheDirectory;
+    private long cacheSize = XslOutputCache.DEFAULT_MAX_SIZE;
+    private List<String> includePaths;
+    private List<String> excludePaths;
+    private int shards = 1;
+    private String shardBy = ShardedXslExporter.SHARD_BY_COUNT;
+    private String shardFileName;
+    private String profileDirectory;
+    private String profileLevel = "templates";
 
     public void setFormat(Map<String, String> m) {
         this.format = new OutputFormat(m.get("extension"), m.get("displayName"));
     }
 
+    /**
+     * Sets the template and compiles it right away, so that a missing or
+     * broken template fails the configuration of the factory instead of the
+     * first export. All exporters of the factory share the compiled template.
+     */
     public void setTemplateFile(String templateFile) {
+        try {
+            XslTemplateCache.getExecutable(templateFile);
+        } catch (SaxonApiException | IOException e) {
+            throw new IllegalArgumentException("Failed to compile XSL template: " + templateFile, e);
+        }
         this.templateFile = templateFile;
     }
 
@@ -57,9 +97,117 @@ public class XslExporterFactory implements ExporterFactory<Substance> {
         this.shouldCompress = shouldCompress;
     }
 
+    public void setInputMode(String inputMode) {
+        this.inputMode = inputMode;
+    }
+
+    public void setExportThreads(int exportThreads) {
+        this.exportThreads = exportThreads;
+    }
+
+    public void setCompressionThreads(int compressionThreads) {
+        this.compressionThreads = compressionThreads;
+    }
+
+    public void setCompressionBlockSize(int compressionBlockSize) {
+        this.compressionBlockSize = compressionBlockSize;
+    }
+
+    public void setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+    }
+
+    /**
+     * Enables delta exports, see {@link XslExportDelta}, for a dedicated
+     * format with the keys {@code format} (extension and displayName),
+     * {@code mode} ({@code full} or {@code changed}) and {@code directory}.
+     * The delta format is meant for scheduled exports of all substances and
+     * is not listed in {@link #getSupportedFormats()}; exports in the regular
+     * format never use the delta.
+     */
+    @SuppressWarnings("unchecked")
+    public void setDelta(Map<String, Object> m) {
+        Object formatValue = m.get("format");
+        if (!(formatValue instanceof Map) || ((Map<String, String>) formatValue).get("extension") == null) {
+            throw new IllegalArgumentException("Delta export needs a format with an extension");
+        }
+        Map<String, String> formatMap = (Map<String, String>) formatValue;
+        String mode = m.get("mode") == null ? XslExportDelta.MODE_FULL : m.get("mode").toString();
+        if (!XslExportDelta.MODE_FULL.equalsIgnoreCase(mode) && !XslExportDelta.MODE_CHANGED.equalsIgnoreCase(mode)) {
+            throw new IllegalArgumentException("Invalid delta export mode: " + mode);
+        }
+        Object directoryValue = m.get("directory");
+        if (directoryValue == null || directoryValue.toString().isEmpty()) {
+            throw new IllegalArgumentException("Delta export needs a directory");
+        }
+        File directory = new File(directoryValue.toString());
+        if (!directory.isDirectory() && !directory.mkdirs() || !directory.canWrite()) {
+            throw new IllegalArgumentException("Delta export directory is not writable: " + directory);
+        }
+        this.deltaFormat = new OutputFormat(formatMap.get("extension"), formatMap.get("displayName"));
+        this.deltaMode = mode;
+        this.deltaDirectory = directory;
+    }
+
+    public void setCacheDirectory(String cacheDirectory) {
+        this.cacheDirectory = cacheDirectory;
+    }
+
+    public void setCacheSize(long cacheSize) {
+        this.cacheSize = cacheSize;
+    }
+
+    /**
+     * Sets the paths of the substance JSON fields the template needs, see
+     * {@link XslJsonProjection}.
+     */
+    public void setIncludePaths(List<String> includePaths) {
+        this.includePaths = includePaths;
+    }
+
+    public void setExcludePaths(List<String> excludePaths) {
+        this.excludePaths = excludePaths;
+    }
+
+    /**
+     * Sets the number of part files the export is split into, see
+     * {@link ShardedXslExporter}.
+     */
+    public void setShards(int shards) {
+        this.shards = shards;
+    }
+
+    public void setShardBy(String shardBy) {
+        this.shardBy = shardBy;
+    }
+
+    public void setShardFileName(String shardFileName) {
+        this.shardFileName = shardFileName;
+    }
+
+    /**
+     * Enables the template profiler; a report of every export is written into
+     * the directory, see {@link XslTemplateProfiler}.
+     */
+    public void setProfileDirectory(String profileDirectory) {
+        this.profileDirectory = profileDirectory;
+    }
+
+    /**
+     * Sets whether the profiler times only templates and functions
+     * ({@code templates}) or every instruction ({@code instructions}).
+     */
+    public void setProfileLevel(String profileLevel) {
+        this.profileLevel = profileLevel;
+    }
+
     @Override
     public boolean supports(Parameters params) {
-        return params.getFormat().equals(format);
+        return params.getFormat().equals(format) || isDeltaExport(params);
+    }
+
+    private boolean isDeltaExport(Parameters params) {
+        return deltaFormat != null && params.getFormat().equals(deltaFormat);
     }
 
     @Override
@@ -69,18 +217,107 @@ public class XslExporterFactory implements ExporterFactory<Substance> {
 
     @Override
     public Exporter<Substance> createNewExporter(OutputStream out, Parameters params) throws IOException {
+        boolean profiled = profileDirectory != null && !profileDirectory.isEmpty();
+        XsltExecutable executable;
+        String templateHash;
+        try {
+            executable = profiled
+                    ? XslTemplateCache.getProfiledExecutable(templateFile, "instructions".equalsIgnoreCase(profileLevel))
+                    : XslTemplateCache.getExecutable(templateFile);
+            templateHash = XslTemplateCache.getTemplateHash(templateFile);
+        } catch (SaxonApiException e) {
+            throw new IOException(e);
+        }
+        XslJsonProjection projection = new XslJsonProjection(includePaths, excludePaths);
+        if (projection.isEmpty()) {
+            projection = null;
+        } else {
+            templateHash = templateHash + "-" + Integer.toHexString(projection.toString().hashCode());
+        }
+        boolean deltaExport = isDeltaExport(params);
+        boolean cached = cacheDirectory != null && !cacheDirectory.isEmpty();
+        if (shards > 1 && (profiled || deltaExport)) {
+            log.warn("Ignoring shards {} of the XSL export: {} exports are not sharded", shards,
+                    profiled ? "profiled" : "delta");
+        } else if (shards > 1) {
+            if (cached || exportThreads > 1) {
+                log.warn("Ignoring {} of the sharded XSL export", cached && exportThreads > 1
+                        ? "cacheDirectory and exportThreads" : cached ? "cacheDirectory" : "exportThreads");
+            }
+            ShardedXslExporter exporter = new ShardedXslExporter(out, executable, header, footer, delimiter,
+                    shouldCompress, getShardFileName(), shards, shardBy);
+            exporter.setInputMode(inputMode);
+            exporter.setProjection(projection);
+            return exporter;
+        }
         if(shouldCompress) {
+            out = compress(out);
+        }
+        XslExportDelta delta = null;
+        if (deltaExport) {
+            if (params.publicOnly()) {
+                throw new IllegalArgumentException("Delta exports must include all substances, not only public ones");
+            }
+            delta = new XslExportDelta(deltaDirectory, deltaMode, templateHash);
+        }
+        XslOutputCache cache = null;
+        if (cached && !profiled) {
             try {
-                return new XslExporter(new GZIPOutputStream(out), templateFile, header, footer, delimiter);
-            } catch (Exception e) {
-                throw new IOException(e);
+                cache = XslOutputCache.getInstance(cacheDirectory, cacheSize);
+            } catch (IOException e) {
+                log.warn("XSL output cache {} is not available: {}", cacheDirectory, e.getMessage());
             }
         }
+        if (exportThreads > 1 && (delta != null || cache != null || profiled)) {
+            log.warn("Ignoring exportThreads {} of the XSL export: {} exports use a single thread", exportThreads,
+                    profiled ? "profiled" : delta != null ? "delta" : "cached");
+        } else if (exportThreads > 1) {
+            ParallelXslExporter exporter = new ParallelXslExporter(out, executable, header, footer, delimiter, exportThreads);
+            exporter.setInputMode(inputMode);
+            exporter.setProjection(projection);
+            return exporter;
+        }
+        XslExporter exporter;
         try {
-            return new XslExporter(out, templateFile, header, footer, delimiter);
+            exporter = new XslExporter(out, executable, header, footer, delimiter);
         } catch (Exception e) {
+            if (delta != null) {
+                delta.close();
+            }
             throw new IOException(e);
         }
+        exporter.setInputMode(inputMode);
+        exporter.setProjection(projection);
+        if (delta != null) {
+            SubstanceRepository repository = StaticContextAccessor.getBean(SubstanceRepository.class);
+            exporter.setDelta(delta, repository != null ? repository::count : null);
+        }
+        if (cache != null) {
+            exporter.setCache(cache, templateHash);
+        }
+        if (profiled) {
+            exporter.setProfiler(new XslTemplateProfiler(templateFile), new File(profileDirectory));
+        }
+        return exporter;
+    }
+
+    private String getShardFileName() {
+        if (shardFileName != null && !shardFileName.isEmpty()) {
+            return shardFileName;
+        }
+        String name = templateFile.replaceAll("^.*[/\\\\]", "").replaceAll("\\.xslt?$", "");
+        return name + (shouldCompress ? ".json.gz" : ".json");
+    }
+
+    private OutputStream compress(OutputStream out) throws IOException {
+        if (compressionThreads > 1) {
+            return new ParallelGzipOutputStream(out, compressionBlockSize, compressionThreads, compressionLevel);
+        }
+        return new GZIPOutputStream(out) {
+            {
+                def.setLevel(compressionLevel);
+            }
+        };
     }
 
     @Override
@@ -0,0 +1,216 @@
+package gsrs.module.substance.exporters;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.filter.FilteringGeneratorDelegate;
+import com.fasterxml.jackson.core.filter.TokenFilter;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Projection of the substance JSON to the fields an export template needs.
+ *
+ * <p>Fields are selected by dot separated paths of property names; array
+ * elements do not take part in the path, so {@code names.name} selects the
+ * name of every element of the {@code names} array. A path segment
+ * {@code *} matches one property (a {@code *} within a segment any part of
+ * the name) and {@code **} matches any number of properties. A field is
+ * serialized with all its content if it matches one of the include paths (or
+ * no include paths are given) and neither it nor any of its parents matches
+ * one of the exclude paths. Parents of included fields are kept; scalar fields
+ * outside the included paths are dropped.</p>
+ *
+ * @author Egor Puzanov
+ */
+public class XslJsonProjection {
+
+    private static final Pattern ANY = Pattern.compile(".*", Pattern.DOTALL);
+    private static final int[] NONE = new int[0];
+
+    private final List<String> includes;
+    private final List<String> excludes;
+    private final Pattern[][] includePatterns;
+    private final Pattern[][] excludePatterns;
+    private final PathFilter root;
+
+    public XslJsonProjection(List<String> includes, List<String> excludes) {
+        this.includes = includes == null ? Collections.emptyList() : new ArrayList<>(includes);
+        this.excludes = excludes == null ? Collections.emptyList() : new ArrayList<>(excludes);
+        this.includePatterns = compile(this.includes);
+        this.excludePatterns = compile(this.excludes);
+        this.root = new PathFilter(this.includes.isEmpty() ? NONE : start(includePatterns),
+                start(excludePatterns), this.includes.isEmpty());
+    }
+
+    public boolean isEmpty() {
+        return includes.isEmpty() && excludes.isEmpty();
+    }
+
+    /**
+     * Serializes the projection of the value to a JSON string.
+     */
+    public String writeValueAsString(ObjectWriter writer, Object value) throws IOException {
+        StringWriter out = new StringWriter(4096);
+        try (JsonGenerator generator = filter(writer.getFactory().createGenerator(out))) {
+            writer.writeValue(generator, value);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Serializes the projection of the value into the token buffer.
+     */
+    public void writeValue(ObjectWriter writer, TokenBuffer tokens, Object value) throws IOException {
+        writer.writeValue(filter(tokens), value);
+    }
+
+    @Override
+    public String toString() {
+        return "include=" + includes + ";exclude=" + excludes;
+    }
+
+    private JsonGenerator filter(JsonGenerator generator) {
+        return new FilteringGeneratorDelegate(generator, root, TokenFilter.Inclusion.INCLUDE_ALL_AND_PATH, true);
+    }
+
+    private static Pattern[][] compile(List<String> paths) {
+        Pattern[][] patterns = new Pattern[paths.size()][];
+        for (int p = 0; p < paths.size(); p++) {
+            String[] segments = paths.get(p).trim().split("\\.");
+            patterns[p] = new Pattern[segments.length];
+            for (int i = 0; i < segments.length; i++) {
+                patterns[p][i] = "**".equals(segments[i]) ? null : glob(segments[i]);
+            }
+        }
+        return patterns;
+    }
+
+    private static Pattern glob(String segment) {
+        if ("*".equals(segment)) {
+            return ANY;
+        }
+        StringBuilder regex = new StringBuilder();
+        for (String part : segment.split("\\*", -1)) {
+            if (regex.length() > 0) {
+                regex.append(".*");
+            }
+            regex.append(Pattern.quote(part));
+        }
+        return Pattern.compile(regex.toString(), Pattern.DOTALL);
+    }
+
+    private static int[] start(Pattern[][] patterns) {
+        StateSet states = new StateSet();
+        for (int p = 0; p < patterns.length; p++) {
+            states.add(patterns, p, 0);
+        }
+        return states.toArray();
+    }
+
+    /**
+     * Advances the states of the path patterns over one property name.
+     * A state encodes the pattern index in the upper and the index of the
+     * next segment in the lower 16 bits.
+     */
+    private static int[] advance(Pattern[][] patterns, int[] states, String name) {
+        if (states.length == 0) {
+            return NONE;
+        }
+        StateSet next = new StateSet();
+        for (int state : states) {
+            int p = state >>> 16;
+            int i = state & 0xFFFF;
+            if (i == patterns[p].length) {
+                continue;
+            }
+            Pattern segment = patterns[p][i];
+            if (segment == null) {
+                next.add(patterns, p, i);
+            } else if (segment == ANY || segment.matcher(name).matches()) {
+                next.add(patterns, p, i + 1);
+            }
+        }
+        return next.toArray();
+    }
+
+    private static boolean matched(Pattern[][] patterns, int[] states) {
+        for (int state : states) {
+            if ((state & 0xFFFF) == patterns[state >>> 16].length) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static class StateSet {
+        private int[] states = new int[8];
+        private int size = 0;
+
+        private void add(Pattern[][] patterns, int p, int i) {
+            int state = (p << 16) | i;
+            for (int k = 0; k < size; k++) {
+                if (states[k] == state) {
+                    return;
+                }
+            }
+            if (size == states.length) {
+                states = Arrays.copyOf(states, size * 2);
+            }
+            states[size++] = state;
+            if (i < patterns[p].length && patterns[p][i] == null) {
+                add(patterns, p, i + 1);
+            }
+        }
+
+        private int[] toArray() {
+            return size == 0 ? NONE : Arrays.copyOf(states, size);
+        }
+    }
+
+    private class PathFilter extends TokenFilter {
+
+        private final int[] includeStates;
+        private final int[] excludeStates;
+        private final boolean included;
+
+        private PathFilter(int[] includeStates, int[] excludeStates, boolean included) {
+            this.includeStates = includeStates;
+            this.excludeStates = excludeStates;
+            this.included = included;
+        }
+
+        @Override
+        public TokenFilter includeProperty(String name) {
+            int[] exclude = advance(excludePatterns, excludeStates, name);
+            if (matched(excludePatterns, exclude)) {
+                return null;
+            }
+            int[] include = included ? NONE : advance(includePatterns, includeStates, name);
+            boolean includeAll = included || matched(includePatterns, include);
+            if (includeAll && exclude.length == 0) {
+                return TokenFilter.INCLUDE_ALL;
+            }
+            if (!includeAll && include.length == 0) {
+                return null;
+            }
+            return new PathFilter(includeAll ? NONE : include, exclude, includeAll);
+        }
+
+        @Override
+        public TokenFilter includeElement(int index) {
+            return this;
+        }
+
+        @Override
+        protected boolean _includeScalar() {
+            return included;
+        }
+    }
+}
@@ -0,0 +1,326 @@
+package gsrs.module.substance.exporters;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent cache of transformed records keyed by substance UUID, version
+ * and template hash, shared by all exports using the same cache directory.
+ *
+ * <p>Records are appended to memory-mapped segment files of
+ * {@code segmentSize} bytes. Every record is stored with its key and a CRC32
+ * checksum, so the index is rebuilt by scanning the segments when the cache
+ * is opened and a record torn by a crash is dropped. Entries are evicted in
+ * least recently used order when the cached records exceed {@code maxSize}
+ * bytes; a segment without live records is deleted, and the oldest segment is
+ * dropped as a whole when the segments take more than twice {@code maxSize}
+ * bytes of disk space.</p>
+ *
+ * <p>A cache hit is returned as a read-only view of the mapped segment which
+ * can be copied to the output without any transformation.</p>
+ *
+ * @author Egor Puzanov
+ */
+@Slf4j
+public class XslOutputCache {
+
+    public static final long DEFAULT_MAX_SIZE = 1024L * 1024 * 1024;
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private static final int MAGIC = 0x58534c43;
+    private static final int RECORD_HEADER = 16;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".dat";
+    private static final Map<String, XslOutputCache> CACHES = new ConcurrentHashMap<>();
+
+    private final File directory;
+    private final long maxSize;
+    private final int segmentSize;
+    private final FileChannel lockChannel;
+    private final FileLock lock;
+    private final List<Segment> segments = new ArrayList<>();
+    private final LinkedHashMap<String, Location> index = new LinkedHashMap<>(16, 0.75f, true);
+    private long size = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    XslOutputCache(File directory, long maxSize, int segmentSize) throws IOException {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        this.segmentSize = segmentSize;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create XSL output cache directory: " + directory);
+        }
+        lockChannel = FileChannel.open(new File(directory, "cache.lock").toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock acquired;
+        try {
+            acquired = lockChannel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            acquired = null;
+        }
+        if (acquired == null) {
+            lockChannel.close();
+            throw new IOException("XSL output cache is used by another process: " + directory);
+        }
+        lock = acquired;
+        load();
+    }
+
+    /**
+     * Returns the cache of the directory, opening it on first use. All
+     * exporters of this process share one cache per directory, whose size is
+     * set by the first caller; a different {@code maxSize} of a later caller
+     * is ignored with a warning.
+     */
+    public static XslOutputCache getInstance(String directory, long maxSize) throws IOException {
+        File dir = new File(directory).getCanonicalFile();
+        synchronized (CACHES) {
+            XslOutputCache cache = CACHES.get(dir.getPath());
+            if (cache == null) {
+                cache = new XslOutputCache(dir, maxSize, (int) Math.min(DEFAULT_SEGMENT_SIZE, Math.max(maxSize / 4, 1024 * 1024)));
+                CACHES.put(dir.getPath(), cache);
+            } else if (cache.maxSize != maxSize) {
+                log.warn("XSL output cache {} is already open with a size of {} bytes; ignoring the size {}",
+                        dir, cache.maxSize, maxSize);
+            }
+            return cache;
+        }
+    }
+
+    /**
+     * Returns the cache key of the record, or {@code null} if the substance
+     * has no UUID or version and cannot be cached.
+     */
+    public static String key(Object uuid, String version, String templateHash) {
+        if (uuid == null || version == null || templateHash == null) {
+            return null;
+        }
+        return uuid + "\t" + version + "\t" + templateHash;
+    }
+
+    /**
+     * Returns a read-only view of the cached record, or {@code null} on a
+     * cache miss.
+     */
+    public synchronized ByteBuffer get(String key) {
+        Location location = index.get(key);
+        if (location == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        ByteBuffer record = location.segment.buffer.asReadOnlyBuffer();
+        record.position(location.offset);
+        record.limit(location.offset + location.length);
+        return record.slice();
+    }
+
+    /**
+     * Appends the record to the cache; records larger than a quarter of a
+     * segment are not cached.
+     */
+    public synchronized void put(String key, byte[] record, int offset, int length) throws IOException {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int total = RECORD_HEADER + keyBytes.length + length;
+        if (total > segmentSize / 4) {
+            return;
+        }
+        Segment segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (segment == null || segment.buffer.capacity() - segment.position < total) {
+            segment = createSegment(segment == null ? 1 : segment.number + 1);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(keyBytes, 0, keyBytes.length);
+        crc.update(record, offset, length);
+        ByteBuffer buffer = segment.buffer;
+        int start = segment.position;
+        buffer.position(start + 4);
+        buffer.putInt(keyBytes.length);
+        buffer.putInt(length);
+        buffer.putInt((int) crc.getValue());
+        buffer.put(keyBytes);
+        buffer.put(record, offset, length);
+        buffer.putInt(start, MAGIC);
+        segment.position = buffer.position();
+        add(key, new Location(segment, start + RECORD_HEADER + keyBytes.length, length));
+        evict();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getSize() {
+        return size;
+    }
+
+    private void add(String key, Location location) {
+        Location previous = index.put(key, location);
+        if (previous != null) {
+            release(previous);
+        }
+        location.segment.live++;
+        size += location.length;
+    }
+
+    private void release(Location location) {
+        size -= location.length;
+        location.segment.live--;
+        Segment last = segments.get(segments.size() - 1);
+        if (location.segment.live == 0 && location.segment != last) {
+            deleteSegment(location.segment);
+        }
+    }
+
+    private void evict() {
+        Iterator<Location> eldest = index.values().iterator();
+        while (size > maxSize && eldest.hasNext()) {
+            Location location = eldest.next();
+            eldest.remove();
+            release(location);
+        }
+        while (segments.size() > 1 && (long) segments.size() * segmentSize > 2 * maxSize) {
+            Segment oldest = segments.get(0);
+            index.values().removeIf(location -> {
+                if (location.segment == oldest) {
+                    size -= location.length;
+                    return true;
+                }
+                return false;
+            });
+            oldest.live = 0;
+            deleteSegment(oldest);
+        }
+    }
+
+    private void load() throws IOException {
+        File[] files = directory.listFiles((dir, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            int number;
+            try {
+                number = Integer.parseInt(file.getName().substring(SEGMENT_PREFIX.length(),
+                        file.getName().length() - SEGMENT_SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            Segment segment = new Segment(number, file, map(file, Math.max(file.length(), segmentSize)));
+            segments.add(segment);
+            scan(segment);
+        }
+        for (Segment segment : new ArrayList<>(segments)) {
+            if (segment.live == 0 && segment != segments.get(segments.size() - 1)) {
+                deleteSegment(segment);
+            }
+        }
+        evict();
+        log.debug("Opened XSL output cache {} with {} records", directory, index.size());
+    }
+
+    private void scan(Segment segment) {
+        ByteBuffer buffer = segment.buffer;
+        int position = 0;
+        while (position + RECORD_HEADER <= buffer.capacity() && buffer.getInt(position) == MAGIC) {
+            int keyLength = buffer.getInt(position + 4);
+            int length = buffer.getInt(position + 8);
+            int checksum = buffer.getInt(position + 12);
+            int end = position + RECORD_HEADER + keyLength + length;
+            if (keyLength < 0 || length < 0 || end > buffer.capacity() || end < position) {
+                break;
+            }
+            byte[] keyBytes = new byte[keyLength];
+            ByteBuffer view = buffer.duplicate();
+            view.position(position + RECORD_HEADER);
+            view.get(keyBytes);
+            CRC32 crc = new CRC32();
+            crc.update(keyBytes);
+            view.limit(end);
+            crc.update(view);
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            add(new String(keyBytes, StandardCharsets.UTF_8),
+                    new Location(segment, position + RECORD_HEADER + keyLength, length));
+            position = end;
+        }
+        segment.position = position;
+    }
+
+    private Segment createSegment(int number) throws IOException {
+        File file = new File(directory, String.format("%s%08d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+        Segment segment = new Segment(number, file, map(file, segmentSize));
+        segments.add(segment);
+        if (segments.size() > 1 && segments.get(segments.size() - 2).live == 0) {
+            deleteSegment(segments.get(segments.size() - 2));
+        }
+        return segment;
+    }
+
+    private void deleteSegment(Segment segment) {
+        segments.remove(segment);
+        try {
+            Files.deleteIfExists(segment.file.toPath());
+        } catch (IOException e) {
+            log.warn("Unable to delete XSL output cache segment {}", segment.file, e);
+        }
+    }
+
+    private static MappedByteBuffer map(File file, long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    private static class Segment {
+        private final int number;
+        private final File file;
+        private final MappedByteBuffer buffer;
+        private int position = 0;
+        private int live = 0;
+
+        private Segment(int number, File file, MappedByteBuffer buffer) {
+            this.number = number;
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+
+    private static class Location {
+        private final Segment segment;
+        private final int offset;
+        private final int length;
+
+        private Location(Segment segment, int offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
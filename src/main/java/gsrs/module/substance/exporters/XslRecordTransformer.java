@@ -0,0 +1,132 @@
+package gsrs.module.substance.exporters;
+
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+
+import gsrs.module.substance.xsl.JsonXdmBuilder;
+import gsrs.module.substance.xsl.XslTemplateCache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+import javax.xml.transform.stream.StreamSource;
+
+import net.sf.saxon.lib.TraceListener;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.Serializer;
+import net.sf.saxon.s9api.XdmAtomicValue;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.XsltExecutable;
+import net.sf.saxon.s9api.XsltTransformer;
+
+/**
+ * Transforms the JSON of single substances with an export template into a
+ * reused buffer.
+ *
+ * <p>One serializer is bound to the buffer for the lifetime of the
+ * transformer. It writes to a UTF-8 {@link Writer}, because for an
+ * {@link java.io.OutputStream} Saxon allocates new encoder buffers on every
+ * transformation. An instance is not thread safe; concurrent exports use one
+ * instance per thread.</p>
+ *
+ * @author Egor Puzanov
+ */
+public class XslRecordTransformer {
+
+    private static final QName JSON_INPUT = new QName("json-input");
+    private static final QName JSON_XML = new QName("json-xml");
+    private static final XdmAtomicValue EMPTY_STRING = XdmAtomicValue.makeAtomicValue("");
+
+    private final XsltTransformer transformer;
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(16 * 1024);
+    private final Writer bufferWriter = new OutputStreamWriter(buffer, StandardCharsets.UTF_8);
+
+    public XslRecordTransformer(XsltExecutable executable) throws SaxonApiException {
+        Processor processor = XslTemplateCache.getProcessor();
+        transformer = executable.load();
+
+        XdmNode sourceNode = processor.newDocumentBuilder()
+            .build(new StreamSource(new StringReader("<root/>")));
+        transformer.setInitialContextNode(sourceNode);
+
+        Serializer serializer = processor.newSerializer(bufferWriter);
+        serializer.setOutputProperty(Serializer.Property.METHOD, "text");
+        transformer.setDestination(serializer);
+    }
+
+    /**
+     * Attaches a trace listener, e.g. an {@link gsrs.module.substance.xsl.XslTemplateProfiler},
+     * to the transformations.
+     */
+    public void setTraceListener(TraceListener traceListener) {
+        transformer.setTraceListener(traceListener);
+    }
+
+    /**
+     * Transforms the serialized substance JSON, passed as the
+     * {@code json-input} parameter.
+     *
+     * @return the buffer holding the output, valid until the next call
+     */
+    public ByteArrayOutputStream transform(String json) throws SaxonApiException, IOException {
+        transformer.setParameter(JSON_INPUT, XdmAtomicValue.makeAtomicValue(json));
+        return transform();
+    }
+
+    /**
+     * Transforms the substance JSON tokens, passed as the {@code fn:json-to-xml}
+     * tree in the {@code json-xml} parameter.
+     *
+     * @return the buffer holding the output, valid until the next call
+     */
+    public ByteArrayOutputStream transform(TokenBuffer tokens) throws SaxonApiException, IOException {
+        transformer.setParameter(JSON_INPUT, EMPTY_STRING);
+        transformer.setParameter(JSON_XML, JsonXdmBuilder.build(tokens.asParser()));
+        return transform();
+    }
+
+    /**
+     * Transforms an input returned by {@link #toInput}.
+     *
+     * @return the buffer holding the output, valid until the next call
+     */
+    public ByteArrayOutputStream transformInput(Object input) throws SaxonApiException, IOException {
+        return input instanceof TokenBuffer ? transform((TokenBuffer) input) : transform((String) input);
+    }
+
+    /**
+     * Serializes the substance as the input mode passes it to the template:
+     * the JSON tokens for {@code xdm}, the JSON text otherwise, restricted to
+     * the projection if there is one.
+     */
+    public static Object toInput(ObjectWriter writer, XslJsonProjection projection, String inputMode, Object value)
+            throws IOException {
+        if ("xdm".equalsIgnoreCase(inputMode)) {
+            TokenBuffer tokens = new TokenBuffer(null, false);
+            if (projection == null) {
+                writer.writeValue(tokens, value);
+            } else {
+                projection.writeValue(writer, tokens, value);
+            }
+            return tokens;
+        }
+        return projection == null ? writer.writeValueAsString(value) : projection.writeValueAsString(writer, value);
+    }
+
+    private ByteArrayOutputStream transform() throws SaxonApiException, IOException {
+        bufferWriter.flush();
+        buffer.reset();
+        try {
+            transformer.transform();
+        } finally {
+            bufferWriter.flush();
+        }
+        return buffer;
+    }
+}
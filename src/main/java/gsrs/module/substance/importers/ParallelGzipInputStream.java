@@ -0,0 +1,246 @@
+package gsrs.module.substance.importers;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Decompresses a multi-member gzip stream on several threads.
+ *
+ * <p>Members which carry their compressed size in a BGZF style {@code BC}
+ * extra subfield (as written by {@code bgzip} or by the block compressing
+ * exporters of this module) can be located without inflating them, so they are
+ * read ahead and inflated concurrently while the decompressed blocks are
+ * returned in their original order. At most {@code threads * 2} members are in
+ * flight at a time. As soon as a member without size information is found the
+ * rest of the input is decompressed sequentially with {@link GZIPInputStream}.</p>
+ *
+ * @author Egor Puzanov
+ */
+public class ParallelGzipInputStream extends InputStream {
+
+    private static final int HEADER_SIZE = 10;
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+    private static final byte[] EMPTY = new byte[0];
+
+    private final PushbackInputStream in;
+    private final int threads;
+    private final Deque<Future<byte[]>> pending = new ArrayDeque<>();
+    private ExecutorService executor;
+    private InputStream fallback;
+    private byte[] current = EMPTY;
+    private int position = 0;
+    private boolean eof = false;
+
+    public ParallelGzipInputStream(InputStream in, int threads) {
+        this.in = new PushbackInputStream(in, HEADER_SIZE + 2 + 0xFFFF);
+        this.threads = Math.max(threads, 1);
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (position >= current.length) {
+            fill();
+            Future<byte[]> next = pending.poll();
+            if (next == null) {
+                return fallback != null ? fallback.read(b, off, len) : -1;
+            }
+            current = await(next);
+            position = 0;
+        }
+        int n = Math.min(len, current.length - position);
+        System.arraycopy(current, position, b, off, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (executor != null) {
+            pending.forEach(f -> f.cancel(true));
+            executor.shutdownNow();
+        }
+        pending.clear();
+        if (fallback != null) {
+            fallback.close();
+        } else {
+            in.close();
+        }
+    }
+
+    private void fill() throws IOException {
+        while (fallback == null && !eof && pending.size() < threads * 2) {
+            byte[] member = readMember();
+            if (member == null) {
+                break;
+            }
+            if (executor == null) {
+                AtomicInteger threadCount = new AtomicInteger();
+                executor = Executors.newFixedThreadPool(threads, r -> {
+                    Thread thread = new Thread(r, "gzip-inflate-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            pending.add(executor.submit(() -> inflate(member)));
+        }
+    }
+
+    private byte[] readMember() throws IOException {
+        byte[] header = new byte[HEADER_SIZE + 2];
+        int read = readFully(header, 0, HEADER_SIZE);
+        if (read == 0) {
+            eof = true;
+            return null;
+        }
+        if (read < HEADER_SIZE || (header[0] & 0xFF) != 0x1F || (header[1] & 0xFF) != 0x8B) {
+            throw new ZipException("Not in GZIP format");
+        }
+        int blockSize = -1;
+        byte[] extra = EMPTY;
+        if ((header[3] & FEXTRA) != 0) {
+            if (readFully(header, HEADER_SIZE, 2) < 2) {
+                throw new EOFException("Unexpected end of GZIP header");
+            }
+            extra = new byte[readShort(header, HEADER_SIZE)];
+            if (readFully(extra, 0, extra.length) < extra.length) {
+                throw new EOFException("Unexpected end of GZIP header");
+            }
+            blockSize = blockSize(extra);
+        }
+        if (blockSize < 0) {
+            in.unread(extra);
+            in.unread(header, 0, (header[3] & FEXTRA) != 0 ? HEADER_SIZE + 2 : HEADER_SIZE);
+            fallback = new GZIPInputStream(in, 64 * 1024);
+            return null;
+        }
+        int headerLength = HEADER_SIZE + 2 + extra.length;
+        byte[] member = new byte[blockSize];
+        if (blockSize < headerLength + 8) {
+            throw new ZipException("Invalid GZIP block size");
+        }
+        System.arraycopy(header, 0, member, 0, HEADER_SIZE + 2);
+        System.arraycopy(extra, 0, member, HEADER_SIZE + 2, extra.length);
+        if (readFully(member, headerLength, blockSize - headerLength) < blockSize - headerLength) {
+            throw new EOFException("Unexpected end of GZIP block");
+        }
+        return member;
+    }
+
+    private static int blockSize(byte[] extra) {
+        int i = 0;
+        while (i + 4 <= extra.length) {
+            int length = readShort(extra, i + 2);
+            if (extra[i] == 'B' && extra[i + 1] == 'C' && length == 2 && i + 6 <= extra.length) {
+                return readShort(extra, i + 4) + 1;
+            }
+            i += 4 + length;
+        }
+        return -1;
+    }
+
+    private static byte[] inflate(byte[] member) throws IOException {
+        int flags = member[3];
+        int offset = HEADER_SIZE + 2 + readShort(member, HEADER_SIZE);
+        if ((flags & FNAME) != 0) {
+            while (member[offset++] != 0) {
+                // skip the zero terminated file name
+            }
+        }
+        if ((flags & FCOMMENT) != 0) {
+            while (member[offset++] != 0) {
+                // skip the zero terminated comment
+            }
+        }
+        if ((flags & FHCRC) != 0) {
+            offset += 2;
+        }
+        int trailer = member.length - 8;
+        long expectedCrc = readInt(member, trailer) & 0xFFFFFFFFL;
+        byte[] data = new byte[readInt(member, trailer + 4)];
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(member, offset, trailer - offset);
+            int n = 0;
+            while (n < data.length && !inflater.finished()) {
+                int inflated = inflater.inflate(data, n, data.length - n);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new ZipException("Corrupt GZIP block");
+                }
+                n += inflated;
+            }
+            if (n != data.length) {
+                throw new ZipException("Corrupt GZIP block size");
+            }
+        } catch (DataFormatException e) {
+            throw new ZipException(e.getMessage());
+        } finally {
+            inflater.end();
+        }
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        if (crc.getValue() != expectedCrc) {
+            throw new ZipException("Corrupt GZIP trailer");
+        }
+        return data;
+    }
+
+    private byte[] await(Future<byte[]> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while decompressing GZIP input", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Unable to decompress GZIP input", e.getCause());
+        }
+    }
+
+    private int readFully(byte[] b, int off, int len) throws IOException {
+        int total = 0;
+        while (total < len) {
+            int n = in.read(b, off + total, len - total);
+            if (n < 0) {
+                break;
+            }
+            total += n;
+        }
+        return total;
+    }
+
+    private static int readShort(byte[] b, int off) {
+        return (b[off] & 0xFF) | ((b[off + 1] & 0xFF) << 8);
+    }
+
+    private static int readInt(byte[] b, int off) {
+        return readShort(b, off) | (readShort(b, off + 2) << 16);
+    }
+}
@@ -1,25 +1,33 @@
 package gsrs.module.substance.importers;
 
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
 import gsrs.imports.ImportAdapter;
 import gsrs.json.JsonEntityUtil;
+import gsrs.module.substance.xsl.JsonXdmBuilder;
+import gsrs.module.substance.xsl.XdmJsonConverter;
+import gsrs.module.substance.xsl.XslTemplateCache;
+import gsrs.module.substance.xsl.XslTemplateProfiler;
 
 import ix.ginas.models.v1.Substance;
 import ix.ginas.utils.JsonSubstanceFactory;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+
 import lombok.extern.slf4j.Slf4j;
 
 import net.sf.saxon.s9api.DocumentBuilder;
 import net.sf.saxon.s9api.Processor;
 import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.RawDestination;
 import net.sf.saxon.s9api.SaxonApiException;
 import net.sf.saxon.s9api.Serializer;
 import net.sf.saxon.s9api.XdmAtomicValue;
 import net.sf.saxon.s9api.XdmNode;
-import net.sf.saxon.s9api.XsltCompiler;
 import net.sf.saxon.s9api.XsltExecutable;
 import net.sf.saxon.s9api.XsltTransformer;
 
@@ -28,18 +36,38 @@ import org.springframework.transaction.PlatformTransactionManager;
 import org.springframework.transaction.TransactionDefinition;
 import org.springframework.transaction.support.TransactionTemplate;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.Reader;
 import java.io.StringReader;
 import java.nio.charset.StandardCharsets;
-import java.util.regex.Pattern;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.GZIPInputStream;
 
 import javax.xml.transform.stream.StreamSource;
 import javax.xml.transform.Source;
@@ -49,11 +77,14 @@ import javax.xml.transform.Source;
  * input into GSRS-formatted JSON, then converts the resulting JSON records into
  * {@link Substance} entities for import.
  *
- * <p>The adapter reads the incoming {@link InputStream} as text, passes it to
- * a configurable XSL stylesheet, and expects the stylesheet to emit one or more
- * GSRS JSON substance records. Each record is then parsed through
- * {@link JsonSubstanceFactory#makeSubstance(JsonNode)} and returned as a
- * {@link Stream} of {@link Substance} objects.</p>
+ * <p>The adapter splits the incoming {@link InputStream} into records with a
+ * streaming {@link XslRecordSplitter}, passes each record to a configurable XSL
+ * stylesheet, and expects the stylesheet to emit a GSRS JSON substance record.
+ * Each record is then parsed through
+ * {@link JsonSubstanceFactory#makeSubstance(JsonNode)} and returned as a lazily
+ * evaluated {@link Stream} of {@link Substance} objects, so only the record in
+ * progress is held in memory. GZIP compressed input is detected by its magic
+ * bytes and decompressed on the fly.</p>
  *
  * <p>The XSL template receives the raw input text via the {@code raw-input}
  * parameter. For JSON-to-JSON transformations the stylesheet can parse the value
@@ -62,6 +93,33 @@ import javax.xml.transform.Source;
  * GSRS-to-FHIR stylesheets in this project demonstrate the JSON parsing
  * pattern.</p>
  *
+ * <p>For XML input a {@code recordElement} name or path can be configured
+ * instead of a text delimiter. The input is then pull-parsed once by
+ * {@link XslRecordElementReader} and every matching element is passed to the
+ * stylesheet as the initial context node, with an empty {@code raw-input}.</p>
+ *
+ * <p>With the {@code xdm} input mode JSON records are read by Jackson and the
+ * {@code fn:json-to-xml} tree is passed to the stylesheet as the
+ * {@code json-xml} parameter, so the stylesheet does not parse the record
+ * text again.</p>
+ *
+ * <p>With the {@code xdm} result mode the stylesheet receives the
+ * {@code result-mode} parameter set to {@code xdm} and is expected to return
+ * the {@code fn:xml-to-json} tree (or an XDM map) of the substance, which is
+ * converted into a {@link JsonNode} by {@link XdmJsonConverter} without any
+ * serialization to JSON text.</p>
+ *
+ * <p>With a {@code quarantineFile} failing records are written to that file
+ * (see {@link XslImportQuarantine}) and the import goes on. With a
+ * {@code checkpointFile} the position of the last processed record is saved
+ * (see {@link XslImportCheckpoint}) and a restarted import of the same input
+ * skips the records before it without transforming them again; a checkpoint
+ * of a different input is ignored.</p>
+ *
+ * <p>The stages of the import are measured by {@link XslImportMetrics} and
+ * published to the Spring {@link MeterRegistry}, or to the global Micrometer
+ * registry outside of Spring.</p>
+ *
  * @author Egor Puzanov
  */
 @Slf4j
@@ -70,13 +128,29 @@ public class XslImportAdapter implements ImportAdapter<Substance> {
     @Autowired
     private PlatformTransactionManager platformTransactionManager;
 
+    @Autowired(required = false)
+    private MeterRegistry meterRegistry;
+
     private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+    private static final XdmNode EMPTY_DOCUMENT = buildEmptyDocument();
 
     private String templateFile;
     private String inputFormat = "JSON";
     private String header = "";
     private String footer = "";
     private String delimiter = "";
+    private int parallelism = 1;
+    private int batchSize = 1;
+    private int decompressionThreads = Runtime.getRuntime().availableProcessors();
+    private String recordElement;
+    private String inputMode = "text";
+    private String resultMode = "text";
+    private String quarantineFile;
+    private String checkpointFile;
+    private int checkpointInterval = 100;
+    private String profileDirectory;
+    private String profileLevel = "templates";
+    private XslImportMetrics metrics;
 
     public void setTemplateFile(String templateFile) {
         this.templateFile = templateFile;
@@ -118,126 +192,615 @@ public class XslImportAdapter implements ImportAdapter<Substance> {
         return delimiter;
     }
 
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setDecompressionThreads(int decompressionThreads) {
+        this.decompressionThreads = decompressionThreads;
+    }
+
+    public int getDecompressionThreads() {
+        return decompressionThreads;
+    }
+
+    public void setRecordElement(String recordElement) {
+        this.recordElement = recordElement;
+    }
+
+    public String getRecordElement() {
+        return recordElement;
+    }
+
+    public void setInputMode(String inputMode) {
+        this.inputMode = inputMode;
+    }
+
+    public String getInputMode() {
+        return inputMode;
+    }
+
+    public void setResultMode(String resultMode) {
+        this.resultMode = resultMode;
+    }
+
+    public String getResultMode() {
+        return resultMode;
+    }
+
+    public void setQuarantineFile(String quarantineFile) {
+        this.quarantineFile = quarantineFile;
+    }
+
+    public String getQuarantineFile() {
+        return quarantineFile;
+    }
+
+    public void setCheckpointFile(String checkpointFile) {
+        this.checkpointFile = checkpointFile;
+    }
+
+    public String getCheckpointFile() {
+        return checkpointFile;
+    }
+
+    public void setCheckpointInterval(int checkpointInterval) {
+        this.checkpointInterval = checkpointInterval;
+    }
+
+    public int getCheckpointInterval() {
+        return checkpointInterval;
+    }
+
+    public void setProfileDirectory(String profileDirectory) {
+        this.profileDirectory = profileDirectory;
+    }
+
+    public String getProfileDirectory() {
+        return profileDirectory;
+    }
+
+    public void setProfileLevel(String profileLevel) {
+        this.profileLevel = profileLevel;
+    }
+
+    public String getProfileLevel() {
+        return profileLevel;
+    }
+
+    public void setPlatformTransactionManager(PlatformTransactionManager platformTransactionManager) {
+        this.platformTransactionManager = platformTransactionManager;
+    }
+
+    public void setMeterRegistry(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+        this.metrics = null;
+    }
+
+    private XslImportMetrics metrics() {
+        if (metrics == null) {
+            metrics = new XslImportMetrics(meterRegistry != null ? meterRegistry : Metrics.globalRegistry, templateFile);
+        }
+        return metrics;
+    }
+
+    /**
+     * Returns the substances of the input as a lazy stream. The stream owns
+     * the input and, with a parallelism above one, a pool of worker threads
+     * started when the first substance is requested, so callers must close
+     * it, e.g. with try-with-resources.
+     */
     @Override
     public Stream<Substance> parse(InputStream is, ObjectNode settings, JsonNode schema) {
-        Stream.Builder<Substance> substanceStream = Stream.builder();
-        String rawInput = readInputStreamAsString(is);
-        if (rawInput == null || rawInput.isEmpty()) {
-            log.warn("Input stream is empty; no substances to import.");
-            return substanceStream.build();
+        XsltExecutable executable;
+        XslTemplateProfiler profiler = null;
+        try {
+            if (profileDirectory != null && !profileDirectory.isEmpty()) {
+                executable = XslTemplateCache.getProfiledExecutable(templateFile,
+                        "instructions".equalsIgnoreCase(profileLevel));
+                profiler = new XslTemplateProfiler(templateFile);
+            } else {
+                executable = XslTemplateCache.getExecutable(templateFile);
+            }
+        } catch (Exception e) {
+            throw new RuntimeException("Failed to load XSL template: " + templateFile, e);
         }
-
-        String cleanedInput = rawInput;
-        if (header != null && !header.isEmpty() && cleanedInput.startsWith(header)) {
-            cleanedInput = cleanedInput.substring(header.length());
+        String input = null;
+        if (checkpointFile != null && !checkpointFile.isEmpty()) {
+            BufferedInputStream in = new BufferedInputStream(is, XslImportCheckpoint.FINGERPRINT_HEAD_SIZE);
+            input = fingerprint(is, in, settings);
+            is = in;
         }
-        if (footer != null && !footer.isEmpty() && cleanedInput.endsWith(footer)) {
-            cleanedInput = cleanedInput.substring(0, cleanedInput.length() - footer.length());
+        XslImportMetrics metrics = metrics();
+        is = metrics.countBytes(is);
+        XslImportCheckpoint checkpoint = loadCheckpoint(input);
+        long index = checkpoint != null ? checkpoint.getIndex() : 0;
+        Iterator<?> records;
+        Runnable closeRecords;
+        LongSupplier offsets;
+        if (isRecordElementMode()) {
+            XslRecordElementReader reader = new XslRecordElementReader(
+                    decompress(is), recordElement, XslTemplateCache.getProcessor());
+            records = reader;
+            closeRecords = reader::close;
+            offsets = () -> -1L;
+        } else {
+            long offset = checkpoint != null ? checkpoint.getOffset() : 0;
+            XslRecordSplitter splitter = new XslRecordSplitter(decompress(is), header, delimiter, footer, offset);
+            records = splitter;
+            closeRecords = splitter::close;
+            offsets = splitter::getOffset;
+            if (offset > 0) {
+                checkpoint = null;
+            }
+        }
+        if (checkpoint != null && checkpoint.getOffset() < 0) {
+            for (long i = 0; i < index && records.hasNext(); i++) {
+                records.next();
+            }
         }
+        SubstanceSpliterator substances = new SubstanceSpliterator(
+                metrics.countRecords(records), closeRecords, offsets, index, input, executable, profiler,
+                openQuarantine());
+        return StreamSupport.stream(substances, false).onClose(substances::close);
+    }
 
-        String[] records;
-        if (delimiter != null && !delimiter.isEmpty()) {
-            records = cleanedInput.split(Pattern.quote(delimiter), -1);
-        } else {
-            records = new String[]{cleanedInput};
+    /**
+     * Returns the fingerprint of the input, see
+     * {@link XslImportCheckpoint#fingerprint}. The name is the
+     * {@code fileName} of the import settings; the size is only known for a
+     * file stream.
+     */
+    private String fingerprint(InputStream is, BufferedInputStream in, ObjectNode settings) {
+        try {
+            long size = is instanceof FileInputStream ? ((FileInputStream) is).getChannel().size() : -1;
+            String name = settings != null ? settings.path("fileName").asText("") : "";
+            return XslImportCheckpoint.fingerprint(name, size, in);
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to read import input stream", e);
         }
+    }
 
-        for (String record : records) {
-            if (record == null) {
-                continue;
+    private XslImportCheckpoint loadCheckpoint(String input) {
+        if (checkpointFile == null || checkpointFile.isEmpty()) {
+            return null;
+        }
+        try {
+            XslImportCheckpoint checkpoint = XslImportCheckpoint.load(new File(checkpointFile));
+            if (checkpoint != null && !checkpoint.getInput().equals(input)) {
+                log.warn("Ignoring import checkpoint {} of a different input", checkpointFile);
+                return null;
+            }
+            if (checkpoint != null) {
+                log.info("Resuming import after record {} (input offset {}) from checkpoint {}",
+                        checkpoint.getIndex(), checkpoint.getOffset(), checkpointFile);
             }
+            return checkpoint;
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to read import checkpoint: " + checkpointFile, e);
+        }
+    }
 
-            String cleanedRecord = record.trim();
-            if (cleanedRecord.isEmpty()) {
-                continue;
+    private XslImportQuarantine openQuarantine() {
+        if (quarantineFile == null || quarantineFile.isEmpty()) {
+            return null;
+        }
+        try {
+            return new XslImportQuarantine(new File(quarantineFile));
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to open import quarantine file: " + quarantineFile, e);
+        }
+    }
+
+    private InputStream decompress(InputStream is) {
+        BufferedInputStream in = new BufferedInputStream(is, 64 * 1024);
+        try {
+            in.mark(2);
+            int magic = in.read() | (in.read() << 8);
+            in.reset();
+            if (magic != 0x8B1F) {
+                return in;
+            }
+            log.debug("Detected GZIP compressed input; decompressing with {} threads.", decompressionThreads);
+            if (decompressionThreads > 1) {
+                return new ParallelGzipInputStream(in, decompressionThreads);
             }
+            return new GZIPInputStream(in, 64 * 1024);
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to read import input stream", e);
+        }
+    }
+
+    private static XdmNode buildEmptyDocument() {
+        try {
+            return XslTemplateCache.getProcessor().newDocumentBuilder()
+                    .build(new StreamSource(new StringReader("<root/>")));
+        } catch (SaxonApiException e) {
+            throw new IllegalStateException(e);
+        }
+    }
 
+    private boolean isRecordElementMode() {
+        return "XML".equalsIgnoreCase(inputFormat) && recordElement != null && !recordElement.isEmpty();
+    }
+
+    private List<ImportedRecord> convertRecords(XsltExecutable executable, XslTemplateProfiler profiler,
+                                                List<ImportedRecord> batch) {
+        List<ImportedRecord> transformed = new ArrayList<>(batch.size());
+        for (ImportedRecord importedRecord : batch) {
             try {
-                String transformedJson = transform(cleanedRecord);
-                if (transformedJson == null || transformedJson.isEmpty()) {
+                importedRecord.json = transform(executable, profiler, importedRecord.record);
+                if (importedRecord.json == null) {
                     log.warn("XSL transformation produced no output for a record; skipping.");
+                    metrics().getSkipped().increment();
                     continue;
                 }
+                transformed.add(importedRecord);
+            } catch (Exception e) {
+                metrics().getFailed().increment();
+                importedRecord.error = new RuntimeException("Failed to parse input record using XSL template: " + templateFile, e);
+            }
+        }
 
-                log.trace("Transformed record to JSON:\n{}", transformedJson);
-
-                JsonNode currentRecord = OBJECT_MAPPER.readTree(transformedJson);
-                TransactionTemplate txManageConversion = new TransactionTemplate(platformTransactionManager);
-                txManageConversion.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
-                Substance converted = txManageConversion.execute(t -> convertJsonNode(currentRecord));
-
-                if (converted != null) {
-                    log.trace("converted JSON to substance with ID {}. It has {} names",
-                            converted.getUuid(), converted.names.size());
-                    substanceStream.add(converted);
+        if (transformed.size() > 1) {
+            TransactionTemplate txManageConversion = newConversionTransaction();
+            try {
+                List<Substance> converted = txManageConversion.execute(t -> transformed.stream()
+                        .map(r -> convertJsonNode(r.json))
+                        .collect(Collectors.toList()));
+                for (int i = 0; i < transformed.size(); i++) {
+                    transformed.get(i).setSubstance(converted.get(i));
                 }
+                return batch;
             } catch (Exception e) {
-                throw new RuntimeException("Failed to parse input record using XSL template: " + templateFile, e);
+                log.debug("Conversion of a batch of {} records failed; converting the records one by one.",
+                        transformed.size(), e);
             }
         }
 
-        return substanceStream.build();
+        for (ImportedRecord importedRecord : transformed) {
+            try {
+                TransactionTemplate txManageConversion = newConversionTransaction();
+                importedRecord.setSubstance(txManageConversion.execute(t -> convertJsonNode(importedRecord.json)));
+            } catch (Exception e) {
+                metrics().getFailed().increment();
+                importedRecord.error = new RuntimeException("Failed to parse input record using XSL template: " + templateFile, e);
+            }
+        }
+        return batch;
     }
 
-    private Substance convertJsonNode(JsonNode node) {
-        Substance substance = JsonSubstanceFactory.makeSubstance(node);
-        return JsonEntityUtil.fixOwners(substance, true);
+    private TransactionTemplate newConversionTransaction() {
+        TransactionTemplate txManageConversion = new TransactionTemplate(platformTransactionManager);
+        txManageConversion.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        return txManageConversion;
     }
 
-    private String readInputStreamAsString(InputStream is) {
-        StringBuilder builder = new StringBuilder();
-        try (Reader reader = new InputStreamReader(is, StandardCharsets.UTF_8)) {
-            char[] buffer = new char[8192];
-            int read;
-            while ((read = reader.read(buffer)) != -1) {
-                builder.append(buffer, 0, read);
-            }
-        } catch (IOException e) {
-            throw new RuntimeException("Unable to read import input stream", e);
-        }
-        return builder.toString();
+    private Substance convertJsonNode(JsonNode node) {
+        return metrics().getConversion().record(() -> {
+            Substance substance = JsonSubstanceFactory.makeSubstance(node);
+            return JsonEntityUtil.fixOwners(substance, true);
+        });
     }
 
-    private String transform(String rawInput) throws SaxonApiException, IOException {
-        Processor processor = new Processor(false);
-        XsltCompiler compiler = processor.newXsltCompiler();
-
-        InputStream templateStream = Thread.currentThread().getContextClassLoader()
-                .getResourceAsStream(templateFile);
-        if (templateStream == null) {
-            File file = new File(templateFile);
-            if (file.exists()) {
-                templateStream = new FileInputStream(file);
-            } else {
-                throw new IOException("XSL template not found on classpath or filesystem: " + templateFile);
-            }
+    private JsonNode transform(XsltExecutable executable, XslTemplateProfiler profiler, Object record)
+            throws SaxonApiException, IOException {
+        long start = System.nanoTime();
+        Processor processor = XslTemplateCache.getProcessor();
+        XsltTransformer transformer = executable.load();
+        if (profiler != null) {
+            transformer.setTraceListener(profiler);
         }
 
-        XsltExecutable executable;
-        try {
-            executable = compiler.compile(new StreamSource(templateStream));
-        } finally {
-            templateStream.close();
+        String rawInput;
+        XdmNode initialNode;
+        if (record instanceof XdmNode) {
+            rawInput = "";
+            initialNode = (XdmNode) record;
+        } else if ("xdm".equalsIgnoreCase(inputMode) && !"XML".equalsIgnoreCase(inputFormat)) {
+            rawInput = "";
+            initialNode = EMPTY_DOCUMENT;
+            try (JsonParser parser = OBJECT_MAPPER.getFactory().createParser((String) record)) {
+                transformer.setParameter(new QName("json-xml"), JsonXdmBuilder.build(parser));
+            }
+        } else {
+            rawInput = (String) record;
+            DocumentBuilder documentBuilder = processor.newDocumentBuilder();
+            initialNode = documentBuilder.build(
+                new StreamSource(
+                    new StringReader(
+                        "XML".equalsIgnoreCase(inputFormat) ? rawInput : "<root/>")));
         }
-
-        XsltTransformer transformer = executable.load();
-
-        DocumentBuilder documentBuilder = processor.newDocumentBuilder();
-        XdmNode initialNode = documentBuilder.build(
-            new StreamSource(
-                new StringReader(
-                    "XML".equalsIgnoreCase(inputFormat) ? rawInput : "<root/>")));
         transformer.setInitialContextNode(initialNode);
 
         transformer.setParameter(new QName("raw-input"), XdmAtomicValue.makeAtomicValue(rawInput));
         transformer.setParameter(new QName("input-format"), XdmAtomicValue.makeAtomicValue(inputFormat));
 
+        if ("xdm".equalsIgnoreCase(resultMode)) {
+            transformer.setParameter(new QName("result-mode"), XdmAtomicValue.makeAtomicValue("xdm"));
+            RawDestination destination = new RawDestination();
+            transformer.setDestination(destination);
+            transformer.transform();
+            start = recordTransform(start);
+            JsonNode json = XdmJsonConverter.toJsonNode(destination.getXdmValue());
+            metrics().getParse().record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            return json;
+        }
+
         ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
         Serializer serializer = processor.newSerializer(outputStream);
         serializer.setOutputProperty(Serializer.Property.METHOD, "text");
         transformer.setDestination(serializer);
         transformer.transform();
+        start = recordTransform(start);
+
+        String transformedJson = outputStream.toString(StandardCharsets.UTF_8.name());
+        if (transformedJson.isEmpty()) {
+            return null;
+        }
+        log.trace("Transformed record to JSON:\n{}", transformedJson);
+        JsonNode json = OBJECT_MAPPER.readTree(transformedJson);
+        metrics().getParse().record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        return json;
+    }
 
-        return outputStream.toString(StandardCharsets.UTF_8.name());
+    private long recordTransform(long start) {
+        long end = System.nanoTime();
+        metrics().getTransform().record(end - start, TimeUnit.NANOSECONDS);
+        return end;
+    }
+
+    /**
+     * A single input record with its position in the input, together with the
+     * outcome of its transformation and conversion.
+     */
+    private static class ImportedRecord {
+
+        private final Object record;
+        private final long index;
+        private final long offset;
+        private JsonNode json;
+        private Substance substance;
+        private RuntimeException error;
+
+        private ImportedRecord(Object record, long index, long offset) {
+            this.record = record;
+            this.index = index;
+            this.offset = offset;
+        }
+
+        private void setSubstance(Substance substance) {
+            this.substance = substance;
+            this.json = null;
+            if (substance != null) {
+                log.trace("converted JSON to substance with ID {}. It has {} names",
+                        substance.getUuid(), substance.names.size());
+            }
+        }
+    }
+
+    /**
+     * Converts the records of a {@link XslRecordSplitter} or a
+     * {@link XslRecordElementReader} into substances in
+     * batches of {@code batchSize} records. With a parallelism greater than one
+     * the batches are converted on a bounded worker pool; at most
+     * {@code parallelism * 2} batches are in flight at a time and the
+     * substances are handed out in input order.
+     *
+     * <p>If a quarantine file is configured, failed records are written to it
+     * and skipped; otherwise the first failure ends the import. If a
+     * checkpoint file is configured, the position of the last handed out or
+     * quarantined record is saved every {@code checkpointInterval} records and
+     * when the import fails; the checkpoint is deleted once all records have
+     * been processed.</p>
+     */
+    private class SubstanceSpliterator extends Spliterators.AbstractSpliterator<Substance> {
+
+        private final Iterator<?> records;
+        private final Runnable closeRecords;
+        private final LongSupplier offsets;
+        private final XsltExecutable executable;
+        private final XslTemplateProfiler profiler;
+        private final XslImportQuarantine quarantine;
+        private ExecutorService executor;
+        private final int window;
+        private final Deque<FutureTask<List<ImportedRecord>>> pending = new ArrayDeque<>();
+        private Iterator<ImportedRecord> current = Collections.emptyIterator();
+        private boolean empty = true;
+        private long index;
+        private final String input;
+        private ImportedRecord processed;
+        private int unsaved = 0;
+        private boolean closed = false;
+
+        private SubstanceSpliterator(Iterator<?> records, Runnable closeRecords, LongSupplier offsets, long index,
+                                     String input, XsltExecutable executable, XslTemplateProfiler profiler,
+                                     XslImportQuarantine quarantine) {
+            super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL);
+            this.records = records;
+            this.closeRecords = closeRecords;
+            this.offsets = offsets;
+            this.index = index;
+            this.input = input;
+            this.executable = executable;
+            this.profiler = profiler;
+            this.quarantine = quarantine;
+            this.window = parallelism > 1 ? parallelism * 2 : 1;
+        }
+
+        /**
+         * Returns the worker pool, which is only started once the first batch
+         * is submitted. Idle workers exit after a minute, so a stream which
+         * is abandoned without being closed does not keep its threads.
+         */
+        private ExecutorService executor() {
+            if (executor == null) {
+                AtomicInteger threadCount = new AtomicInteger();
+                ThreadPoolExecutor pool = new ThreadPoolExecutor(parallelism, parallelism, 1, TimeUnit.MINUTES,
+                        new LinkedBlockingQueue<>(), r -> {
+                    Thread thread = new Thread(r, "xsl-import-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                pool.allowCoreThreadTimeOut(true);
+                executor = pool;
+            }
+            return executor;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Substance> action) {
+            while (true) {
+                while (current.hasNext()) {
+                    ImportedRecord importedRecord = current.next();
+                    if (importedRecord.error != null) {
+                        if (quarantine == null) {
+                            fail();
+                            throw importedRecord.error;
+                        }
+                        quarantine(importedRecord);
+                    } else if (importedRecord.substance != null) {
+                        action.accept(importedRecord.substance);
+                        processed(importedRecord);
+                        return true;
+                    }
+                    processed(importedRecord);
+                }
+                while (pending.size() < window && records.hasNext()) {
+                    empty = false;
+                    List<ImportedRecord> batch = new ArrayList<>(batchSize);
+                    while (batch.size() < Math.max(batchSize, 1) && records.hasNext()) {
+                        Object record = records.next();
+                        batch.add(new ImportedRecord(record, ++index, offsets.getAsLong()));
+                    }
+                    FutureTask<List<ImportedRecord>> task = new FutureTask<>(() -> convertRecords(executable, profiler, batch));
+                    if (parallelism > 1) {
+                        executor().execute(task);
+                    }
+                    pending.add(task);
+                }
+                FutureTask<List<ImportedRecord>> task = pending.poll();
+                if (task == null) {
+                    if (empty) {
+                        log.warn("Input stream is empty; no substances to import.");
+                        empty = false;
+                    }
+                    deleteCheckpoint();
+                    close();
+                    return false;
+                }
+                current = await(task).iterator();
+            }
+        }
+
+        private List<ImportedRecord> await(FutureTask<List<ImportedRecord>> task) {
+            if (executor == null) {
+                task.run();
+            }
+            try {
+                return task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                fail();
+                throw new RuntimeException("Interrupted while importing records using XSL template: " + templateFile, e);
+            } catch (ExecutionException e) {
+                fail();
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new RuntimeException("Failed to parse input record using XSL template: " + templateFile, e.getCause());
+            }
+        }
+
+        private void quarantine(ImportedRecord importedRecord) {
+            Object record = importedRecord.record;
+            log.warn("Moving record {} to quarantine file {}: {}", importedRecord.index, quarantineFile,
+                    String.valueOf(importedRecord.error.getCause() != null
+                            ? importedRecord.error.getCause().getMessage() : importedRecord.error.getMessage()));
+            try {
+                quarantine.add(importedRecord.index, importedRecord.offset,
+                        record instanceof XdmNode ? ((XdmNode) record).toString() : (String) record,
+                        importedRecord.error);
+            } catch (IOException e) {
+                fail();
+                throw new RuntimeException("Unable to write import quarantine file: " + quarantineFile, e);
+            }
+        }
+
+        private void processed(ImportedRecord importedRecord) {
+            processed = importedRecord;
+            if (checkpointFile != null && !checkpointFile.isEmpty() && ++unsaved >= checkpointInterval) {
+                saveCheckpoint();
+            }
+        }
+
+        private void saveCheckpoint() {
+            unsaved = 0;
+            try {
+                new XslImportCheckpoint(processed.offset, processed.index, input).save(new File(checkpointFile));
+            } catch (IOException e) {
+                log.warn("Unable to save import checkpoint {}", checkpointFile, e);
+            }
+        }
+
+        private void deleteCheckpoint() {
+            unsaved = 0;
+            if (checkpointFile != null && !checkpointFile.isEmpty()) {
+                try {
+                    Files.deleteIfExists(Paths.get(checkpointFile));
+                } catch (IOException e) {
+                    log.warn("Unable to delete import checkpoint {}", checkpointFile, e);
+                }
+            }
+        }
+
+        /**
+         * Closes the import after a failure and saves the position of the
+         * last processed record, so that a restarted import resumes after it.
+         * A normal early close by the consumer keeps the last periodic
+         * checkpoint.
+         */
+        private void fail() {
+            if (!closed && unsaved > 0) {
+                saveCheckpoint();
+            }
+            close();
+        }
+
+        private void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (executor != null) {
+                pending.forEach(t -> t.cancel(true));
+                executor.shutdownNow();
+            }
+            pending.clear();
+            current = Collections.emptyIterator();
+            closeRecords.run();
+            if (quarantine != null) {
+                try {
+                    quarantine.close();
+                } catch (IOException e) {
+                    log.warn("Unable to close import quarantine file {}", quarantineFile, e);
+                }
+            }
+            if (profiler != null) {
+                profiler.writeReportQuietly(new File(profileDirectory));
+            }
+        }
     }
 }
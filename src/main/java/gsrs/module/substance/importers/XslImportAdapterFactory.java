@@ -31,6 +31,17 @@ public class XslImportAdapterFactory extends SubstanceImportAdapterFactoryBase {
     private String header = "";
     private String footer = "";
     private String delimiter = "";
+    private int parallelism = 1;
+    private int batchSize = 1;
+    private int decompressionThreads = Runtime.getRuntime().availableProcessors();
+    private String recordElement;
+    private String inputMode = "text";
+    private String resultMode = "text";
+    private String quarantineFile;
+    private String checkpointFile;
+    private int checkpointInterval = 100;
+    private String profileDirectory;
+    private String profileLevel = "templates";
     private List<String> extensions = Arrays.asList("xml", "json");
 
     protected Class stagingAreaService;
@@ -94,6 +105,94 @@ public class XslImportAdapterFactory extends SubstanceImportAdapterFactoryBase {
         this.delimiter = delimiter;
     }
 
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public int getDecompressionThreads() {
+        return decompressionThreads;
+    }
+
+    public void setDecompressionThreads(int decompressionThreads) {
+        this.decompressionThreads = decompressionThreads;
+    }
+
+    public String getRecordElement() {
+        return recordElement;
+    }
+
+    public void setRecordElement(String recordElement) {
+        this.recordElement = recordElement;
+    }
+
+    public String getInputMode() {
+        return inputMode;
+    }
+
+    public void setInputMode(String inputMode) {
+        this.inputMode = inputMode;
+    }
+
+    public String getResultMode() {
+        return resultMode;
+    }
+
+    public void setResultMode(String resultMode) {
+        this.resultMode = resultMode;
+    }
+
+    public String getQuarantineFile() {
+        return quarantineFile;
+    }
+
+    public void setQuarantineFile(String quarantineFile) {
+        this.quarantineFile = quarantineFile;
+    }
+
+    public String getCheckpointFile() {
+        return checkpointFile;
+    }
+
+    public void setCheckpointFile(String checkpointFile) {
+        this.checkpointFile = checkpointFile;
+    }
+
+    public int getCheckpointInterval() {
+        return checkpointInterval;
+    }
+
+    public void setCheckpointInterval(int checkpointInterval) {
+        this.checkpointInterval = checkpointInterval;
+    }
+
+    public String getProfileDirectory() {
+        return profileDirectory;
+    }
+
+    public void setProfileDirectory(String profileDirectory) {
+        this.profileDirectory = profileDirectory;
+    }
+
+    public String getProfileLevel() {
+        return profileLevel;
+    }
+
+    public void setProfileLevel(String profileLevel) {
+        this.profileLevel = profileLevel;
+    }
+
     @Override
     public List<String> getSupportedFileExtensions() {
         return this.extensions;
@@ -113,6 +212,17 @@ public class XslImportAdapterFactory extends SubstanceImportAdapterFactoryBase {
         importAdapter.setHeader(header);
         importAdapter.setFooter(footer);
         importAdapter.setDelimiter(delimiter);
+        importAdapter.setParallelism(parallelism);
+        importAdapter.setBatchSize(batchSize);
+        importAdapter.setDecompressionThreads(decompressionThreads);
+        importAdapter.setRecordElement(recordElement);
+        importAdapter.setInputMode(inputMode);
+        importAdapter.setResultMode(resultMode);
+        importAdapter.setQuarantineFile(quarantineFile);
+        importAdapter.setCheckpointFile(checkpointFile);
+        importAdapter.setCheckpointInterval(checkpointInterval);
+        importAdapter.setProfileDirectory(profileDirectory);
+        importAdapter.setProfileLevel(profileLevel);
         AutowireHelper.getInstance().autowire(importAdapter);
         return importAdapter;
     }
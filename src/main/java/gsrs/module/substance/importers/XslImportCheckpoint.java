@@ -0,0 +1,116 @@
+package gsrs.module.substance.importers;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Position of the last record of an import which was handed out (or
+ * quarantined), persisted in a small JSON file so that an interrupted import
+ * can be resumed.
+ *
+ * <p>The offset is the number of (decompressed) input bytes up to the end of
+ * the record, or {@code -1} if the records are not read by a
+ * {@link XslRecordSplitter}; the index is the number of records processed so
+ * far. The input is a fingerprint of the imported file (its name, its size
+ * and a hash of its first bytes), so that a checkpoint is never applied to a
+ * different input. The file is replaced atomically, so a crash while saving
+ * leaves the previous checkpoint intact.</p>
+ *
+ * @author Egor Puzanov
+ */
+public class XslImportCheckpoint {
+
+    public static final int FINGERPRINT_HEAD_SIZE = 64 * 1024;
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private final long offset;
+    private final long index;
+    private final String input;
+
+    public XslImportCheckpoint(long offset, long index, String input) {
+        this.offset = offset;
+        this.index = index;
+        this.input = input;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public long getIndex() {
+        return index;
+    }
+
+    public String getInput() {
+        return input;
+    }
+
+    /**
+     * Returns the fingerprint of an input from its name, its size (or
+     * {@code -1} if unknown) and the SHA-256 hash of its first
+     * {@value #FINGERPRINT_HEAD_SIZE} bytes. The stream must support mark and
+     * is reset to its start.
+     */
+    public static String fingerprint(String name, long size, BufferedInputStream in) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] buffer = new byte[8192];
+        in.mark(FINGERPRINT_HEAD_SIZE);
+        int remaining = FINGERPRINT_HEAD_SIZE;
+        int n;
+        while (remaining > 0 && (n = in.read(buffer, 0, Math.min(buffer.length, remaining))) > 0) {
+            digest.update(buffer, 0, n);
+            remaining -= n;
+        }
+        in.reset();
+        StringBuilder hex = new StringBuilder(64);
+        for (byte b : digest.digest()) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return (name != null ? name : "") + ":" + size + ":" + hex;
+    }
+
+    /**
+     * Returns the checkpoint stored in the file, or {@code null} if the file
+     * does not exist.
+     */
+    public static XslImportCheckpoint load(File file) throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+        JsonNode node = OBJECT_MAPPER.readTree(file);
+        return new XslImportCheckpoint(node.path("offset").asLong(-1), node.path("index").asLong(0),
+                node.path("input").asText(""));
+    }
+
+    public void save(File file) throws IOException {
+        ObjectNode node = OBJECT_MAPPER.createObjectNode();
+        node.put("offset", offset);
+        node.put("index", index);
+        node.put("input", input);
+        Path target = file.toPath();
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        Files.write(temp, OBJECT_MAPPER.writeValueAsBytes(node));
+        try {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package gsrs.module.substance.importers;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Micrometer meters of the {@link XslImportAdapter} pipeline, tagged with the
+ * XSL template file.
+ *
+ * <ul>
+ *     <li>{@code gsrs.import.xsl.bytes} - input bytes read (before decompression)</li>
+ *     <li>{@code gsrs.import.xsl.read} - time to read and split the next record</li>
+ *     <li>{@code gsrs.import.xsl.records} - records split from the input</li>
+ *     <li>{@code gsrs.import.xsl.transform} - XSL transformation time per record (with histogram)</li>
+ *     <li>{@code gsrs.import.xsl.parse} - time to turn the transformation result into a JSON tree</li>
+ *     <li>{@code gsrs.import.xsl.conversion} - time to convert the JSON tree into a substance</li>
+ *     <li>{@code gsrs.import.xsl.skipped} - records without transformation output</li>
+ *     <li>{@code gsrs.import.xsl.failed} - records which failed to transform or convert</li>
+ * </ul>
+ *
+ * @author Egor Puzanov
+ */
+public class XslImportMetrics {
+
+    private static final String PREFIX = "gsrs.import.xsl.";
+
+    private final Counter bytes;
+    private final Timer read;
+    private final Counter records;
+    private final Timer transform;
+    private final Timer parse;
+    private final Timer conversion;
+    private final Counter skipped;
+    private final Counter failed;
+
+    public XslImportMetrics(MeterRegistry registry, String templateFile) {
+        String template = templateFile == null ? "" : templateFile;
+        this.bytes = Counter.builder(PREFIX + "bytes")
+                .description("Input bytes read by the XSL import")
+                .baseUnit("bytes")
+                .tag("template", template)
+                .register(registry);
+        this.read = Timer.builder(PREFIX + "read")
+                .description("Time to read and split an input record")
+                .tag("template", template)
+                .register(registry);
+        this.records = Counter.builder(PREFIX + "records")
+                .description("Records split from the import input")
+                .tag("template", template)
+                .register(registry);
+        this.transform = Timer.builder(PREFIX + "transform")
+                .description("XSL transformation time per record")
+                .tag("template", template)
+                .publishPercentileHistogram()
+                .register(registry);
+        this.parse = Timer.builder(PREFIX + "parse")
+                .description("Time to parse the transformation result into JSON")
+                .tag("template", template)
+                .register(registry);
+        this.conversion = Timer.builder(PREFIX + "conversion")
+                .description("Time to convert the JSON into a substance")
+                .tag("template", template)
+                .register(registry);
+        this.skipped = Counter.builder(PREFIX + "skipped")
+                .description("Records without transformation output")
+                .tag("template", template)
+                .register(registry);
+        this.failed = Counter.builder(PREFIX + "failed")
+                .description("Records which failed to transform or convert")
+                .tag("template", template)
+                .register(registry);
+    }
+
+    /**
+     * Wraps the input stream so that every byte read from it is counted.
+     */
+    public InputStream countBytes(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) {
+                    bytes.increment();
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                if (n > 0) {
+                    bytes.increment(n);
+                }
+                return n;
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                long skipped = super.skip(n);
+                if (skipped > 0) {
+                    bytes.increment(skipped);
+                }
+                return skipped;
+            }
+        };
+    }
+
+    /**
+     * Wraps the record iterator so that reading and splitting of every record
+     * is timed and counted.
+     */
+    public <T> Iterator<T> countRecords(Iterator<T> in) {
+        return new Iterator<T>() {
+            private long elapsed = 0;
+
+            @Override
+            public boolean hasNext() {
+                long start = System.nanoTime();
+                try {
+                    return in.hasNext();
+                } finally {
+                    elapsed += System.nanoTime() - start;
+                }
+            }
+
+            @Override
+            public T next() {
+                long start = System.nanoTime();
+                T record = in.next();
+                read.record(elapsed + System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                elapsed = 0;
+                records.increment();
+                return record;
+            }
+        };
+    }
+
+    public Timer getTransform() {
+        return transform;
+    }
+
+    public Timer getParse() {
+        return parse;
+    }
+
+    public Timer getConversion() {
+        return conversion;
+    }
+
+    public Counter getSkipped() {
+        return skipped;
+    }
+
+    public Counter getFailed() {
+        return failed;
+    }
+}
@@ -0,0 +1,59 @@
+package gsrs.module.substance.importers;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Appends import records which could not be transformed or converted to a
+ * quarantine file, one JSON object per line, holding the record index and
+ * input offset, the raw record text, the error message and the stack trace.
+ *
+ * @author Egor Puzanov
+ */
+public class XslImportQuarantine implements Closeable {
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private final File file;
+    private final Writer writer;
+
+    public XslImportQuarantine(File file) throws IOException {
+        this.file = file;
+        this.writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(file, true), StandardCharsets.UTF_8));
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public synchronized void add(long index, long offset, String record, Throwable error) throws IOException {
+        StringWriter stackTrace = new StringWriter();
+        error.printStackTrace(new PrintWriter(stackTrace));
+        ObjectNode node = OBJECT_MAPPER.createObjectNode();
+        node.put("index", index);
+        node.put("offset", offset);
+        node.put("error", String.valueOf(error.getCause() != null ? error.getCause() : error));
+        node.put("record", record);
+        node.put("stackTrace", stackTrace.toString());
+        writer.write(OBJECT_MAPPER.writeValueAsString(node));
+        writer.write('\n');
+        writer.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        writer.close();
+    }
+}
@@ -0,0 +1,212 @@
+package gsrs.module.substance.importers;
+
+import lombok.extern.slf4j.Slf4j;
+
+import net.sf.saxon.s9api.BuildingStreamWriter;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmNode;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.stream.Collectors;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Pull-parses an XML {@link InputStream} once with StAX and returns every
+ * element matching the configured record element as its own {@link XdmNode}.
+ *
+ * <p>The record element is either an element name, which matches at any
+ * depth, or an absolute path such as {@code /document/component/section}.
+ * Every name or path step is a local name, which matches elements in any
+ * namespace, a Clark name such as {@code {urn:hl7-org:v3}subject}, or
+ * {@code *}. The matching subtree is copied straight into a Saxon tree, so the
+ * record is never serialized to or re-parsed from a String.</p>
+ *
+ * @author Egor Puzanov
+ */
+@Slf4j
+public class XslRecordElementReader implements Iterator<XdmNode>, Closeable {
+
+    private static final XMLInputFactory XML_INPUT_FACTORY = XMLInputFactory.newInstance();
+
+    static {
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_COALESCING, true);
+    }
+
+    private final InputStream in;
+    private final XMLStreamReader reader;
+    private final Processor processor;
+    private final boolean absolute;
+    private final List<String[]> steps;
+    private final List<String[]> path = new ArrayList<>();
+    private XdmNode next;
+    private boolean closed = false;
+
+    public XslRecordElementReader(InputStream in, String recordElement, Processor processor) {
+        this.in = in;
+        this.processor = processor;
+        this.absolute = recordElement.startsWith("/");
+        this.steps = Arrays.stream(recordElement.split("/(?![^{]*})"))
+                .filter(s -> !s.isEmpty())
+                .map(XslRecordElementReader::parseStep)
+                .collect(Collectors.toList());
+        try {
+            this.reader = XML_INPUT_FACTORY.createXMLStreamReader(in);
+        } catch (XMLStreamException e) {
+            throw new RuntimeException("Unable to read import input stream", e);
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null && !closed) {
+            try {
+                next = readRecord();
+            } catch (XMLStreamException | SaxonApiException e) {
+                close();
+                throw new RuntimeException("Unable to read XML record from import input stream", e);
+            }
+        }
+        return next != null;
+    }
+
+    @Override
+    public XdmNode next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        XdmNode result = next;
+        next = null;
+        return result;
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            reader.close();
+            in.close();
+        } catch (XMLStreamException | IOException e) {
+            log.warn("Unable to close import input stream", e);
+        }
+    }
+
+    private XdmNode readRecord() throws XMLStreamException, SaxonApiException {
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                path.add(new String[]{reader.getNamespaceURI(), reader.getLocalName()});
+                if (matches()) {
+                    XdmNode record = copyElement();
+                    path.remove(path.size() - 1);
+                    return record;
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                path.remove(path.size() - 1);
+            }
+        }
+        close();
+        return null;
+    }
+
+    private boolean matches() {
+        if (absolute ? path.size() != steps.size() : path.size() < steps.size()) {
+            return false;
+        }
+        int offset = path.size() - steps.size();
+        for (int i = 0; i < steps.size(); i++) {
+            String[] step = steps.get(i);
+            String[] element = path.get(offset + i);
+            if ("*".equals(step[1])) {
+                continue;
+            }
+            if (!step[1].equals(element[1])) {
+                return false;
+            }
+            if (step[0] != null && !step[0].equals(element[0] == null ? "" : element[0])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private XdmNode copyElement() throws XMLStreamException, SaxonApiException {
+        BuildingStreamWriter writer = processor.newDocumentBuilder().newBuildingStreamWriter();
+        writer.writeStartDocument();
+        int depth = 0;
+        int event = XMLStreamConstants.START_ELEMENT;
+        while (true) {
+            switch (event) {
+                case XMLStreamConstants.START_ELEMENT:
+                    depth++;
+                    writer.writeStartElement(nullToEmpty(reader.getPrefix()), reader.getLocalName(),
+                            nullToEmpty(reader.getNamespaceURI()));
+                    for (int i = 0; i < reader.getNamespaceCount(); i++) {
+                        String prefix = reader.getNamespacePrefix(i);
+                        if (prefix == null || prefix.isEmpty()) {
+                            writer.writeDefaultNamespace(nullToEmpty(reader.getNamespaceURI(i)));
+                        } else {
+                            writer.writeNamespace(prefix, nullToEmpty(reader.getNamespaceURI(i)));
+                        }
+                    }
+                    for (int i = 0; i < reader.getAttributeCount(); i++) {
+                        writer.writeAttribute(nullToEmpty(reader.getAttributePrefix(i)),
+                                nullToEmpty(reader.getAttributeNamespace(i)),
+                                reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+                    }
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    writer.writeEndElement();
+                    depth--;
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE:
+                    writer.writeCharacters(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                    break;
+                case XMLStreamConstants.COMMENT:
+                    writer.writeComment(reader.getText());
+                    break;
+                case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                    writer.writeProcessingInstruction(reader.getPITarget(), reader.getPIData());
+                    break;
+                default:
+                    break;
+            }
+            if (depth == 0) {
+                break;
+            }
+            event = reader.next();
+        }
+        writer.writeEndDocument();
+        return writer.getDocumentNode();
+    }
+
+    private static String[] parseStep(String step) {
+        if (step.startsWith("{")) {
+            int end = step.indexOf('}');
+            return new String[]{step.substring(1, end), step.substring(end + 1)};
+        }
+        return new String[]{null, step};
+    }
+
+    private static String nullToEmpty(String value) {
+        return value == null ? "" : value;
+    }
+}
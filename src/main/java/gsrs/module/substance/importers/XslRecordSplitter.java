@@ -0,0 +1,311 @@
+package gsrs.module.substance.importers;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Splits an {@link InputStream} into text records without loading the whole
+ * input into memory.
+ *
+ * <p>The stream is scanned incrementally for the configured header, delimiter
+ * and footer byte sequences (UTF-8 encoded). Only the record currently being
+ * assembled is held on the heap, so memory use is bounded by the largest single
+ * record and not by the size of the input. The header is removed only if the
+ * input starts with it and the footer only if the input ends with it; the
+ * records are split like {@code String.split} would split the input without
+ * header and footer, so a delimiter inside the footer does not end a record
+ * and an input without the header is split from its first byte. Records are
+ * trimmed and empty records are skipped.</p>
+ *
+ * <p>{@link #getOffset()} returns the number of input bytes consumed up to the
+ * end of the last record returned by {@link #next()}. A splitter created with
+ * such an offset skips that many bytes and continues with the following
+ * record, which is how an interrupted import is resumed.</p>
+ *
+ * @author Egor Puzanov
+ */
+@Slf4j
+public class XslRecordSplitter implements Iterator<String>, Closeable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final InputStream in;
+    private final byte[] header;
+    private final byte[] delimiter;
+    private final byte[] footer;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position = 0;
+    private int limit = 0;
+    private long consumed = 0;
+    private long nextOffset = 0;
+    private long offset = 0;
+    private byte[] record = new byte[BUFFER_SIZE];
+    private int recordLength = 0;
+    private byte[] pushback = new byte[0];
+    private int pushbackPosition = 0;
+    private final byte[] ahead;
+    private int aheadStart = 0;
+    private int aheadLength = 0;
+    private boolean inputEnded = false;
+    private boolean headerPending;
+    private boolean eof = false;
+    private boolean closed = false;
+    private String next;
+
+    public XslRecordSplitter(InputStream in, String header, String delimiter, String footer) {
+        this.in = in;
+        this.header = toBytes(header);
+        this.delimiter = toBytes(delimiter);
+        this.footer = toBytes(footer);
+        this.ahead = new byte[this.footer.length + 1];
+        this.headerPending = this.header.length > 0;
+    }
+
+    public XslRecordSplitter(InputStream in, String header, String delimiter, String footer, long offset) {
+        this(in, header, delimiter, footer);
+        if (offset > 0) {
+            skip(offset);
+            this.headerPending = false;
+        }
+    }
+
+    /**
+     * Returns the input offset just behind the last record returned by
+     * {@link #next()}.
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null) {
+            next = readRecord();
+        }
+        return next != null;
+    }
+
+    @Override
+    public String next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        String result = next;
+        next = null;
+        offset = nextOffset;
+        return result;
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            in.close();
+        } catch (IOException e) {
+            log.warn("Unable to close import input stream", e);
+        }
+    }
+
+    private String readRecord() {
+        while (!eof) {
+            int b = nextByte();
+            if (b < 0) {
+                if (headerPending) {
+                    // input shorter than the header
+                    headerPending = false;
+                    if (!matchesHeader()) {
+                        rescan();
+                        continue;
+                    }
+                    recordLength = 0;
+                }
+                eof = true;
+                String last = takeRecord();
+                close();
+                return last;
+            }
+            append((byte) b);
+            if (headerPending) {
+                if (recordLength == header.length) {
+                    headerPending = false;
+                    if (matchesHeader()) {
+                        recordLength = 0;
+                    } else {
+                        rescan();
+                    }
+                }
+                continue;
+            }
+            if (delimiter.length > 0 && endsWith(delimiter)) {
+                recordLength -= delimiter.length;
+                String result = takeRecord();
+                if (result != null) {
+                    return result;
+                }
+            }
+        }
+        return null;
+    }
+
+    private String takeRecord() {
+        String result = new String(record, 0, recordLength, StandardCharsets.UTF_8).trim();
+        recordLength = 0;
+        nextOffset = consumed;
+        return result.isEmpty() ? null : result;
+    }
+
+    /**
+     * Returns the next byte to scan: a byte given back by {@link #rescan()},
+     * or the next input byte unless it belongs to the footer at the end of
+     * the input. Input bytes are read {@code footer.length} bytes ahead, so a
+     * delimiter is only taken once it is known not to be part of the footer.
+     */
+    private int nextByte() {
+        int b;
+        if (pushbackPosition < pushback.length) {
+            b = pushback[pushbackPosition++] & 0xFF;
+        } else if (footer.length == 0) {
+            b = readByte();
+        } else {
+            b = readAhead();
+        }
+        if (b >= 0) {
+            consumed++;
+        }
+        return b;
+    }
+
+    private int readAhead() {
+        while (!inputEnded && aheadLength < ahead.length) {
+            int b = readByte();
+            if (b < 0) {
+                inputEnded = true;
+                if (aheadLength == footer.length && aheadIsFooter() && !overlapsHeader()) {
+                    aheadLength = 0;
+                }
+            } else {
+                ahead[(aheadStart + aheadLength++) % ahead.length] = (byte) b;
+            }
+        }
+        if (aheadLength == 0) {
+            return -1;
+        }
+        int b = ahead[aheadStart] & 0xFF;
+        aheadStart = (aheadStart + 1) % ahead.length;
+        aheadLength--;
+        return b;
+    }
+
+    private boolean aheadIsFooter() {
+        for (int i = 0; i < footer.length; i++) {
+            if (ahead[(aheadStart + i) % ahead.length] != footer[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns whether the input starts with the header and the header is not
+     * scanned yet, so the footer overlaps the header, which is removed first.
+     */
+    private boolean overlapsHeader() {
+        if (!headerPending || recordLength + aheadLength < header.length) {
+            return false;
+        }
+        for (int i = 0; i < header.length; i++) {
+            byte b = i < recordLength ? record[i] : ahead[(aheadStart + i - recordLength) % ahead.length];
+            if (b != header[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gives the bytes read while looking for the header back to the scanner,
+     * so that they are split like any other bytes when the input does not
+     * start with the header.
+     */
+    private void rescan() {
+        pushback = Arrays.copyOf(record, recordLength);
+        pushbackPosition = 0;
+        consumed -= recordLength;
+        recordLength = 0;
+    }
+
+    private int readByte() {
+        if (position >= limit) {
+            try {
+                do {
+                    limit = in.read(buffer, 0, buffer.length);
+                } while (limit == 0);
+            } catch (IOException e) {
+                throw new RuntimeException("Unable to read import input stream", e);
+            }
+            position = 0;
+            if (limit < 0) {
+                limit = 0;
+                return -1;
+            }
+        }
+        return buffer[position++] & 0xFF;
+    }
+
+    private void skip(long count) {
+        try {
+            while (consumed < count) {
+                long skipped = in.skip(count - consumed);
+                if (skipped <= 0) {
+                    if (in.read() < 0) {
+                        throw new IOException("Offset " + count + " is behind the end of the input");
+                    }
+                    skipped = 1;
+                }
+                consumed += skipped;
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to read import input stream", e);
+        }
+        offset = consumed;
+        nextOffset = consumed;
+    }
+
+    private void append(byte b) {
+        if (recordLength == record.length) {
+            record = Arrays.copyOf(record, record.length * 2);
+        }
+        record[recordLength++] = b;
+    }
+
+    private boolean matchesHeader() {
+        return recordLength == header.length && endsWith(header);
+    }
+
+    private boolean endsWith(byte[] sequence) {
+        int start = recordLength - sequence.length;
+        if (start < 0 || record[recordLength - 1] != sequence[sequence.length - 1]) {
+            return false;
+        }
+        for (int i = 0; i < sequence.length - 1; i++) {
+            if (record[start + i] != sequence[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] toBytes(String value) {
+        return value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+    }
+}
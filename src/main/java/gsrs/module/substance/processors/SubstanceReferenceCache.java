@@ -0,0 +1,239 @@
+package gsrs.module.substance.processors;
+
+import ix.ginas.models.v1.Code;
+import ix.ginas.models.v1.Name;
+import ix.ginas.models.v1.Substance;
+import ix.ginas.models.v1.SubstanceReference;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+
+/**
+ * Process-wide cache of substance reference resolutions of the
+ * {@link SubstanceReferenceProcessor}.
+ *
+ * <p>Resolutions are keyed by refuuid (with the approvalID the repository
+ * falls back to), by code and code system, or by lower-cased name. A
+ * resolved target is kept as a {@link SubstanceReference} holding refuuid,
+ * refPname, approvalID and substanceClass; a failed lookup is kept as a
+ * negative result. Entries expire after {@code ttl} milliseconds and are
+ * evicted in least recently used order beyond {@code maxSize} entries.</p>
+ *
+ * <p>The {@link SubstanceReferenceCacheProcessor} drops the entries which
+ * resolve to a saved or deleted substance and the negative entries which the
+ * substance could resolve now. The shared instance stays disabled until that
+ * processor activates it, so that a deployment without it never serves stale
+ * lookups.</p>
+ *
+ * @author Egor Puzanov
+ */
+public class SubstanceReferenceCache {
+
+    public static final int DEFAULT_MAX_SIZE = 10000;
+    public static final long DEFAULT_TTL = 10 * 60 * 1000L;
+
+    private static final SubstanceReferenceCache INSTANCE = new SubstanceReferenceCache(DEFAULT_MAX_SIZE, DEFAULT_TTL, false);
+    private static final String UUID_KEY = "uuid:";
+    private static final String CODE_KEY = "code:";
+    private static final String NAME_KEY = "name:";
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > maxSize;
+        }
+    };
+    private int maxSize;
+    private long ttl;
+    private boolean active;
+    private long hits = 0;
+    private long misses = 0;
+
+    public SubstanceReferenceCache(int maxSize, long ttl) {
+        this(maxSize, ttl, true);
+    }
+
+    private SubstanceReferenceCache(int maxSize, long ttl, boolean active) {
+        this.maxSize = maxSize;
+        this.ttl = ttl;
+        this.active = active;
+    }
+
+    public static SubstanceReferenceCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Changes the bounds of the cache. A {@code maxSize} or {@code ttl} of 0
+     * disables the cache.
+     */
+    public synchronized void configure(int maxSize, long ttl) {
+        this.maxSize = maxSize;
+        this.ttl = ttl;
+        if (!isEnabled()) {
+            entries.clear();
+            return;
+        }
+        Iterator<String> keys = entries.keySet().iterator();
+        while (entries.size() > maxSize && keys.hasNext()) {
+            keys.next();
+            keys.remove();
+        }
+    }
+
+    /**
+     * Enables the cache once its invalidation is wired in.
+     */
+    public synchronized void activate() {
+        active = true;
+    }
+
+    public static String uuidKey(String refuuid, String approvalID) {
+        return UUID_KEY + refuuid + ":" + (approvalID != null ? approvalID : "");
+    }
+
+    public static String codeKey(String code, String codeSystem) {
+        return CODE_KEY + codeSystem + ":" + code;
+    }
+
+    public static String nameKey(String name) {
+        return NAME_KEY + (name != null ? name.toLowerCase() : "");
+    }
+
+    /**
+     * Returns the cached resolution of the key or, on a miss, caches and
+     * returns the one of the loader. The loader runs outside the lock.
+     *
+     * @return the resolved target, or {@code null} if the key does not
+     *         resolve
+     */
+    public SubstanceReference resolve(String key, Supplier<SubstanceReference> loader) {
+        synchronized (this) {
+            if (isEnabled()) {
+                Entry entry = entries.get(key);
+                if (entry != null && entry.expires > System.currentTimeMillis()) {
+                    hits++;
+                    return entry.target;
+                }
+                if (entry != null) {
+                    entries.remove(key);
+                }
+            }
+            misses++;
+        }
+        SubstanceReference target = loader.get();
+        put(key, target);
+        return target;
+    }
+
+    /**
+     * Caches the resolution of the key; a {@code null} target caches a
+     * negative result.
+     */
+    public synchronized void put(String key, SubstanceReference target) {
+        if (isEnabled()) {
+            entries.put(key, new Entry(target != null ? copy(target) : null, System.currentTimeMillis() + ttl));
+        }
+    }
+
+    /**
+     * Drops the entries resolving to the substance and the negative entries
+     * for its refuuid, approvalID, codes and names.
+     */
+    public void invalidate(Substance substance) {
+        if (substance != null && substance.getUuid() != null) {
+            invalidate(substance.getUuid().toString(), substance.approvalID, keys(substance));
+        }
+    }
+
+    /**
+     * Returns the code and name keys of the substance, see
+     * {@link #invalidate(String, String, Set)}.
+     */
+    public static Set<String> keys(Substance substance) {
+        Set<String> keys = new HashSet<>();
+        if (substance.codes != null) {
+            for (Code code : substance.codes) {
+                keys.add(codeKey(code.code, code.codeSystem));
+            }
+        }
+        if (substance.names != null) {
+            for (Name name : substance.names) {
+                keys.add(nameKey(name.name));
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Drops the entries resolving to the refuuid and the negative entries for
+     * the refuuid, the approvalID and the code and name keys.
+     */
+    public synchronized void invalidate(String refuuid, String approvalID, Set<String> keys) {
+        if (entries.isEmpty()) {
+            return;
+        }
+        String uuidPrefix = UUID_KEY + refuuid + ":";
+        String approvalIdSuffix = approvalID != null ? ":" + approvalID : null;
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Entry> entry = iterator.next();
+            SubstanceReference target = entry.getValue().target;
+            String key = entry.getKey();
+            if (target != null
+                    ? refuuid.equals(target.refuuid)
+                    : key.startsWith(uuidPrefix) || keys.contains(key)
+                        || approvalIdSuffix != null && key.startsWith(UUID_KEY) && key.endsWith(approvalIdSuffix)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized int getSize() {
+        return entries.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "SubstanceReferenceCache{size=" + entries.size() + ", hits=" + hits + ", misses=" + misses + "}";
+    }
+
+    private boolean isEnabled() {
+        return active && maxSize > 0 && ttl > 0;
+    }
+
+    private static SubstanceReference copy(SubstanceReference target) {
+        SubstanceReference copy = new SubstanceReference();
+        copy.refuuid = target.refuuid;
+        copy.refPname = target.refPname;
+        copy.approvalID = target.approvalID;
+        copy.substanceClass = target.substanceClass;
+        return copy;
+    }
+
+    private static class Entry {
+        private final SubstanceReference target;
+        private final long expires;
+
+        private Entry(SubstanceReference target, long expires) {
+            this.target = target;
+            this.expires = expires;
+        }
+    }
+}
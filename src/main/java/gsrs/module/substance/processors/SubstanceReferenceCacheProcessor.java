@@ -0,0 +1,107 @@
+package gsrs.module.substance.processors;
+
+import gsrs.springUtils.AutowireHelper;
+import ix.core.EntityProcessor;
+import ix.ginas.models.v1.Substance;
+import ix.ginas.models.v1.SubstanceReference;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Keeps the {@link SubstanceReferenceCache} in line with the substances.
+ * Before a substance is saved, all substance references it depends on are
+ * resolved in a batch by {@link SubstanceReferenceProcessor#resolveAll}, which
+ * takes the same configuration as the SubstanceReferenceProcessor. After a
+ * substance is saved or deleted, its cache entries are invalidated once the
+ * transaction commits, so that a concurrent lookup cannot cache the state
+ * before the commit again. The shared cache is only enabled while this
+ * processor is registered.
+ *
+ * @author Egor Puzanov
+ */
+
+@Slf4j
+public class SubstanceReferenceCacheProcessor implements EntityProcessor<Substance>{
+
+    private final SubstanceReferenceProcessor referenceProcessor;
+    private volatile boolean autowired = false;
+
+    public SubstanceReferenceCacheProcessor() {
+        this(new HashMap<String, Object>());
+    }
+
+    public SubstanceReferenceCacheProcessor(Map<String, Object> m) {
+        referenceProcessor = new SubstanceReferenceProcessor(m);
+        SubstanceReferenceCache.getInstance().activate();
+    }
+
+    @Override
+    public void prePersist(Substance obj) throws EntityProcessor.FailProcessingException {
+        List<SubstanceReference> references = obj.getDependsOnSubstanceReferences();
+        if (references == null || references.isEmpty()) {
+            return;
+        }
+        if (!autowired) {
+            AutowireHelper.getInstance().autowire(referenceProcessor);
+            autowired = true;
+        }
+        referenceProcessor.resolveAll(references);
+    }
+
+    @Override
+    public void preUpdate(Substance obj) throws EntityProcessor.FailProcessingException {
+        prePersist(obj);
+    }
+
+    @Override
+    public void postPersist(Substance obj) throws EntityProcessor.FailProcessingException {
+        invalidate(obj);
+    }
+
+    @Override
+    public void postUpdate(Substance obj) throws EntityProcessor.FailProcessingException {
+        invalidate(obj);
+    }
+
+    @Override
+    public void postRemove(Substance obj) throws EntityProcessor.FailProcessingException {
+        invalidate(obj);
+    }
+
+    private void invalidate(Substance obj) {
+        if (obj.getUuid() == null) {
+            return;
+        }
+        String refuuid = obj.getUuid().toString();
+        String approvalID = obj.approvalID;
+        Set<String> keys = SubstanceReferenceCache.keys(obj);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    invalidate(refuuid, approvalID, keys);
+                }
+            });
+        } else {
+            invalidate(refuuid, approvalID, keys);
+        }
+    }
+
+    private static void invalidate(String refuuid, String approvalID, Set<String> keys) {
+        SubstanceReferenceCache cache = SubstanceReferenceCache.getInstance();
+        cache.invalidate(refuuid, approvalID, keys);
+        log.trace("Invalidated substance {} in {}", refuuid, cache);
+    }
+
+    @Override
+    public Class<Substance> getEntityClass() {
+        return Substance.class;
+    }
+}
@@ -2,16 +2,27 @@ package gsrs.module.substance.processors;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import gsrs.module.substance.repository.SubstanceRepository;
+import gsrs.springUtils.StaticContextAccessor;
 import ix.core.EntityProcessor;
+import ix.ginas.models.v1.Substance;
 import ix.ginas.models.v1.SubstanceReference;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import javax.persistence.EntityManager;
+
 import lombok.Data;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -35,10 +46,15 @@ public class SubstanceReferenceProcessor implements EntityProcessor<SubstanceRef
     private PlatformTransactionManager transactionManager;
 
     private static Pattern fakeIdPattern = Pattern.compile("FAKE_ID:([0-9A-Z]{10})");
+    private static final int QUERY_BATCH_SIZE = 500;
+    private static final long BATCH_CACHE_TTL = 60 * 60 * 1000L;
+    private static final String SUMMARY_COLUMNS = "s.uuid, s.approvalID, s.substanceClass, s._name";
     private SubstanceReferenceProcessorConfig config;
 
     public static class SubstanceReferenceProcessorConfig {
         private Map<Pattern, String> codeSystemPatterns = new HashMap<Pattern, String>();
+        private int cacheSize = SubstanceReferenceCache.DEFAULT_MAX_SIZE;
+        private long cacheTtl = SubstanceReferenceCache.DEFAULT_TTL / 1000;
         public void setCodeSystemPatterns(Map<String, Map<String, String>> m) {
             for (Map<String, String> csp : m.values()) {
                 codeSystemPatterns.put(Pattern.compile(csp.get("pattern")), csp.get("codeSystem"));
@@ -47,6 +63,18 @@ public class SubstanceReferenceProcessor implements EntityProcessor<SubstanceRef
         public Map<Pattern, String> getCodeSystemPatterns() {
             return codeSystemPatterns;
         }
+        public void setCacheSize(int cacheSize) {
+            this.cacheSize = cacheSize;
+        }
+        public int getCacheSize() {
+            return cacheSize;
+        }
+        public void setCacheTtl(long cacheTtl) {
+            this.cacheTtl = cacheTtl;
+        }
+        public long getCacheTtl() {
+            return cacheTtl;
+        }
     }
 
     public SubstanceReferenceProcessor() {
@@ -59,14 +87,263 @@ public class SubstanceReferenceProcessor implements EntityProcessor<SubstanceRef
 
     public void setConfig(Map<String, Object> m) {
         this.config = new ObjectMapper().convertValue(m, SubstanceReferenceProcessorConfig.class);
+        if (m.containsKey("cacheSize") || m.containsKey("cacheTtl")) {
+            SubstanceReferenceCache.getInstance().configure(config.cacheSize, config.cacheTtl * 1000);
+        }
     }
 
     @Override
     public void prePersist(SubstanceReference obj) throws EntityProcessor.FailProcessingException {
-        SubstanceReference substanceReference = null;
+        resolve(obj, SubstanceReferenceCache.getInstance());
+    }
+
+    /**
+     * Resolves the references with a few set based queries in one read-only
+     * transaction, instead of up to three queries and transactions per
+     * reference, and fills them in like {@link #prePersist(SubstanceReference)}
+     * does. The results are also put into the {@link SubstanceReferenceCache},
+     * so that prePersist of the single references finds them there.
+     * References the queries cannot answer are resolved one by one. The
+     * targets are built from the summary columns of the substances, like
+     * {@link SubstanceRepository.SubstanceSummary#toSubstanceReference()}
+     * does, without loading the substance entities.
+     */
+    public void resolveAll(Collection<SubstanceReference> references) {
+        List<SubstanceReference> pending = new ArrayList<SubstanceReference>();
+        for (SubstanceReference reference : references) {
+            if (reference != null) {
+                pending.add(reference);
+            }
+        }
+        if (pending.isEmpty()) {
+            return;
+        }
+        SubstanceReferenceCache cache = SubstanceReferenceCache.getInstance();
+        SubstanceReferenceCache batch = new SubstanceReferenceCache(Integer.MAX_VALUE, BATCH_CACHE_TTL);
+        Set<String> approvalIDs = readOnlyTransaction().execute(status->preload(pending, batch, cache));
+        for (SubstanceReference reference : pending) {
+            String key = hasRefuuid(reference) ? SubstanceReferenceCache.uuidKey(reference.refuuid, reference.approvalID) : null;
+            SubstanceReference target = resolve(reference, batch);
+            if (key != null && (target != null || reference.approvalID == null || !approvalIDs.contains(reference.approvalID))) {
+                cache.put(key, target);
+            }
+            if (target != null) {
+                // prePersist of the resolved reference looks it up by its new refuuid and approvalID
+                cache.put(SubstanceReferenceCache.uuidKey(reference.refuuid, reference.approvalID), target);
+            }
+        }
+        log.debug("Resolved {} substance references in a batch, {}", pending.size(), cache);
+    }
+
+    /**
+     * Looks up the targets of the references by refuuid, then the remaining
+     * ones by code and by name, and puts the results into both caches.
+     *
+     * @return the approvalIDs of the unresolved references which exist
+     */
+    private Set<String> preload(List<SubstanceReference> references, SubstanceReferenceCache batch,
+                                SubstanceReferenceCache cache) {
+        EntityManager entityManager = StaticContextAccessor.getEntityManagerFor(Substance.class);
+
+        Map<SubstanceReference, UUID> uuids = new LinkedHashMap<SubstanceReference, UUID>();
+        List<SubstanceReference> unresolved = new ArrayList<SubstanceReference>();
+        for (SubstanceReference reference : references) {
+            if (!hasRefuuid(reference)) {
+                unresolved.add(reference);
+                continue;
+            }
+            try {
+                uuids.put(reference, UUID.fromString(reference.refuuid));
+            } catch (IllegalArgumentException e) {
+                log.debug("Invalid refuuid {} is resolved later", reference.refuuid);
+            }
+        }
+        Map<UUID, SubstanceReference> byUuid = new HashMap<UUID, SubstanceReference>();
+        for (List<UUID> chunk : chunks(new HashSet<UUID>(uuids.values()))) {
+            for (Object[] row : entityManager
+                    .createQuery("select " + SUMMARY_COLUMNS + " from Substance s where s.uuid in :uuids", Object[].class)
+                    .setParameter("uuids", chunk)
+                    .getResultList()) {
+                byUuid.put((UUID) row[0], toSubstanceReference(row, 0));
+            }
+        }
+        for (Map.Entry<SubstanceReference, UUID> entry : uuids.entrySet()) {
+            SubstanceReference target = byUuid.get(entry.getValue());
+            if (target != null) {
+                put(SubstanceReferenceCache.uuidKey(entry.getKey().refuuid, entry.getKey().approvalID), target, batch, cache);
+            } else {
+                unresolved.add(entry.getKey());
+            }
+        }
+
+        Set<String> approvalIDs = new HashSet<String>();
+        for (SubstanceReference reference : unresolved) {
+            String approvalID = approvalID(reference);
+            if (approvalID != null) {
+                approvalIDs.add(approvalID);
+            }
+        }
+        Set<String> existingApprovalIDs = new HashSet<String>();
+        for (List<String> chunk : chunks(approvalIDs)) {
+            existingApprovalIDs.addAll(entityManager
+                    .createQuery("select s.approvalID from Substance s where s.approvalID in :approvalIDs", String.class)
+                    .setParameter("approvalIDs", chunk)
+                    .getResultList());
+        }
+        for (SubstanceReference reference : uuids.keySet()) {
+            if (!byUuid.containsKey(uuids.get(reference))
+                    && (reference.approvalID == null || !existingApprovalIDs.contains(reference.approvalID))) {
+                put(SubstanceReferenceCache.uuidKey(reference.refuuid, reference.approvalID), null, batch, cache);
+            }
+        }
+
+        Map<SubstanceReference, List<String>> codeKeys = new LinkedHashMap<SubstanceReference, List<String>>();
+        Set<String> codes = new HashSet<String>();
+        for (SubstanceReference reference : unresolved) {
+            String approvalID = approvalID(reference);
+            if (approvalID == null) continue;
+            List<String> keys = new ArrayList<String>();
+            for (Map.Entry<Pattern, String> entry : config.codeSystemPatterns.entrySet()) {
+                if (entry.getKey().matcher(approvalID).find()) {
+                    keys.add(SubstanceReferenceCache.codeKey(approvalID, entry.getValue()));
+                    codes.add(approvalID);
+                }
+            }
+            codeKeys.put(reference, keys);
+        }
+        Map<String, SubstanceReference> byCode = new HashMap<String, SubstanceReference>();
+        for (List<String> chunk : chunks(codes)) {
+            for (Object[] row : entityManager
+                    .createQuery("select c.code, c.codeSystem, " + SUMMARY_COLUMNS
+                            + " from Substance s join s.codes c where c.code in :codes", Object[].class)
+                    .setParameter("codes", chunk)
+                    .getResultList()) {
+                String key = SubstanceReferenceCache.codeKey((String) row[0], (String) row[1]);
+                if (!byCode.containsKey(key)) {
+                    byCode.put(key, toSubstanceReference(row, 2));
+                }
+            }
+        }
+        List<SubstanceReference> unnamed = new ArrayList<SubstanceReference>();
+        for (SubstanceReference reference : unresolved) {
+            boolean resolved = false;
+            for (String key : codeKeys.getOrDefault(reference, Collections.<String>emptyList())) {
+                SubstanceReference target = byCode.get(key);
+                put(key, target, batch, cache);
+                resolved = resolved || target != null;
+            }
+            if (!resolved) {
+                unnamed.add(reference);
+            }
+        }
+
+        Set<String> names = new HashSet<String>();
+        for (SubstanceReference reference : unnamed) {
+            if (reference.refPname != null) {
+                names.add(reference.refPname.toLowerCase());
+            }
+        }
+        Map<String, SubstanceReference> byName = new HashMap<String, SubstanceReference>();
+        for (List<String> chunk : chunks(names)) {
+            for (Object[] row : entityManager
+                    .createQuery("select n.name, " + SUMMARY_COLUMNS
+                            + " from Substance s join s.names n where lower(n.name) in :names", Object[].class)
+                    .setParameter("names", chunk)
+                    .getResultList()) {
+                String key = SubstanceReferenceCache.nameKey((String) row[0]);
+                if (!byName.containsKey(key)) {
+                    byName.put(key, toSubstanceReference(row, 1));
+                }
+            }
+        }
+        for (String name : names) {
+            String key = SubstanceReferenceCache.nameKey(name);
+            put(key, byName.get(key), batch, cache);
+        }
+        return existingApprovalIDs;
+    }
+
+    private static void put(String key, SubstanceReference target, SubstanceReferenceCache batch,
+                            SubstanceReferenceCache cache) {
+        batch.put(key, target);
+        cache.put(key, target);
+    }
+
+    /**
+     * Returns whether the reference has a refuuid which can be looked up,
+     * i.e. neither an empty one nor a FAKE_ID.
+     */
+    private static boolean hasRefuuid(SubstanceReference reference) {
+        return reference.refuuid != null && !reference.refuuid.isEmpty()
+                && !fakeIdPattern.matcher(reference.refuuid).find();
+    }
+
+    /**
+     * Builds the target from the {@link #SUMMARY_COLUMNS} of a result row
+     * starting at the offset.
+     */
+    private static SubstanceReference toSubstanceReference(Object[] row, int offset) {
+        UUID uuid = (UUID) row[offset];
+        String approvalID = (String) row[offset + 1];
+        Substance.SubstanceClass substanceClass = (Substance.SubstanceClass) row[offset + 2];
+        String name = (String) row[offset + 3];
+        return new SubstanceRepository.SubstanceSummary() {
+            @Override
+            public UUID getUuid() {
+                return uuid;
+            }
+
+            @Override
+            public String getApprovalID() {
+                return approvalID;
+            }
+
+            @Override
+            public Substance.SubstanceClass getSubstanceClass() {
+                return substanceClass;
+            }
+
+            @Override
+            public String get_name() {
+                return name;
+            }
+        }.toSubstanceReference();
+    }
+
+    private static String approvalID(SubstanceReference reference) {
+        if (reference.refuuid != null) {
+            Matcher matcher = fakeIdPattern.matcher(reference.refuuid);
+            if (matcher.find()) {
+                return matcher.group(1);
+            }
+        }
+        return reference.approvalID;
+    }
+
+    private static <T> List<List<T>> chunks(Collection<T> values) {
+        List<T> list = new ArrayList<T>(values);
+        List<List<T>> chunks = new ArrayList<List<T>>();
+        for (int i = 0; i < list.size(); i += QUERY_BATCH_SIZE) {
+            chunks.add(list.subList(i, Math.min(i + QUERY_BATCH_SIZE, list.size())));
+        }
+        return chunks;
+    }
+
+    private TransactionTemplate readOnlyTransaction() {
         TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
         transactionTemplate.setReadOnly(true);
         transactionTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        return transactionTemplate;
+    }
+
+    /**
+     * Resolves the reference with the lookups cached in the cache.
+     *
+     * @return the target the reference was resolved to, or {@code null}
+     */
+    private SubstanceReference resolve(SubstanceReference obj, SubstanceReferenceCache cache) {
+        SubstanceReference substanceReference = null;
+        TransactionTemplate transactionTemplate = readOnlyTransaction();
 
         if (obj.refuuid != null && !obj.refuuid.isEmpty()) {
             Matcher matcher = fakeIdPattern.matcher(obj.refuuid);
@@ -74,15 +351,16 @@ public class SubstanceReferenceProcessor implements EntityProcessor<SubstanceRef
                 obj.approvalID = matcher.group(1);
                 obj.refuuid = UUID.randomUUID().toString();
             } else {
-                substanceReference = transactionTemplate.execute(status->{
-                    Optional<SubstanceRepository.SubstanceSummary> optSummary = substanceRepository.findSummaryBySubstanceReference(obj);
-                    if (optSummary.isPresent()) {
-                        return optSummary.get().toSubstanceReference();
-                    }
-                    return null;
-                });
+                substanceReference = cache.resolve(SubstanceReferenceCache.uuidKey(obj.refuuid, obj.approvalID), ()->
+                    transactionTemplate.execute(status->{
+                        Optional<SubstanceRepository.SubstanceSummary> optSummary = substanceRepository.findSummaryBySubstanceReference(obj);
+                        if (optSummary.isPresent()) {
+                            return optSummary.get().toSubstanceReference();
+                        }
+                        return null;
+                    }));
                 if (substanceReference != null) {
-                    return;
+                    return substanceReference;
                 }
             }
         } else {
@@ -94,13 +372,14 @@ public class SubstanceReferenceProcessor implements EntityProcessor<SubstanceRef
                 if (obj.approvalID == null) continue;
                 Matcher m = entry.getKey().matcher(obj.approvalID);
                 if (m.find()) {
-                    substanceReference = transactionTemplate.execute(status->{
-                        Optional<SubstanceRepository.SubstanceSummary> optSummary = substanceRepository.findByCodes_CodeAndCodes_CodeSystem(obj.approvalID, entry.getValue()).stream().findFirst();
-                        if (optSummary.isPresent()) {
-                            return optSummary.get().toSubstanceReference();
-                        }
-                        return null;
-                    });
+                    substanceReference = cache.resolve(SubstanceReferenceCache.codeKey(obj.approvalID, entry.getValue()), ()->
+                        transactionTemplate.execute(status->{
+                            Optional<SubstanceRepository.SubstanceSummary> optSummary = substanceRepository.findByCodes_CodeAndCodes_CodeSystem(obj.approvalID, entry.getValue()).stream().findFirst();
+                            if (optSummary.isPresent()) {
+                                return optSummary.get().toSubstanceReference();
+                            }
+                            return null;
+                        }));
                     if (substanceReference != null) {
                         break;
                     }
@@ -109,13 +388,14 @@ public class SubstanceReferenceProcessor implements EntityProcessor<SubstanceRef
         }
 
         if (substanceReference == null) {
-            substanceReference = transactionTemplate.execute(status->{
-                Optional<SubstanceRepository.SubstanceSummary> optSummary = substanceRepository.findByNames_NameIgnoreCase(obj.refPname).stream().findFirst();
-                if (optSummary.isPresent()) {
-                    return optSummary.get().toSubstanceReference();
-                }
-                return null;
-            });
+            substanceReference = cache.resolve(SubstanceReferenceCache.nameKey(obj.refPname), ()->
+                transactionTemplate.execute(status->{
+                    Optional<SubstanceRepository.SubstanceSummary> optSummary = substanceRepository.findByNames_NameIgnoreCase(obj.refPname).stream().findFirst();
+                    if (optSummary.isPresent()) {
+                        return optSummary.get().toSubstanceReference();
+                    }
+                    return null;
+                }));
         }
 
         if (substanceReference instanceof SubstanceReference) {
@@ -125,6 +405,7 @@ public class SubstanceReferenceProcessor implements EntityProcessor<SubstanceRef
             obj.approvalID = substanceReference.approvalID;
             obj.substanceClass = substanceReference.substanceClass;
         }
+        return substanceReference;
     }
 
     @Override
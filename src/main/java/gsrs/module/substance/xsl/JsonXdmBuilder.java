@@ -0,0 +1,143 @@
+package gsrs.module.substance.xsl;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+
+import net.sf.saxon.s9api.BuildingStreamWriter;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmNode;
+
+import java.io.IOException;
+
+import javax.xml.stream.XMLStreamException;
+
+/**
+ * Builds the XML representation of JSON defined for {@code fn:json-to-xml}
+ * directly from a Jackson token stream.
+ *
+ * <p>The resulting document is equivalent to calling {@code fn:json-to-xml}
+ * with default options on the serialized JSON, but avoids serializing the
+ * JSON to a String and parsing it again inside the stylesheet. Characters
+ * which are not allowed in XML are replaced with U+FFFD, as
+ * {@code fn:json-to-xml} does.</p>
+ *
+ * @author Egor Puzanov
+ */
+public final class JsonXdmBuilder {
+
+    public static final String FN_NAMESPACE = "http://www.w3.org/2005/xpath-functions";
+
+    private JsonXdmBuilder() {
+    }
+
+    public static XdmNode build(JsonNode node) throws IOException, SaxonApiException {
+        try (JsonParser parser = node.traverse()) {
+            return build(parser);
+        }
+    }
+
+    public static XdmNode build(JsonParser parser) throws IOException, SaxonApiException {
+        BuildingStreamWriter writer = XslTemplateCache.getProcessor().newDocumentBuilder().newBuildingStreamWriter();
+        try {
+            writer.writeStartDocument();
+            boolean root = true;
+            int depth = 0;
+            JsonToken token;
+            while ((token = parser.nextToken()) != null) {
+                if (token == JsonToken.FIELD_NAME) {
+                    continue;
+                }
+                if (token == JsonToken.END_OBJECT || token == JsonToken.END_ARRAY) {
+                    writer.writeEndElement();
+                    if (--depth == 0) {
+                        break;
+                    }
+                    continue;
+                }
+                writer.writeStartElement("", elementName(token), FN_NAMESPACE);
+                if (root) {
+                    writer.writeDefaultNamespace(FN_NAMESPACE);
+                    root = false;
+                }
+                String key = parser.getCurrentName();
+                if (key != null) {
+                    writer.writeAttribute("key", sanitize(key));
+                }
+                if (token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY) {
+                    depth++;
+                    continue;
+                }
+                if (token != JsonToken.VALUE_NULL) {
+                    writer.writeCharacters(sanitize(parser.getText()));
+                }
+                writer.writeEndElement();
+                if (depth == 0) {
+                    break;
+                }
+            }
+            writer.writeEndDocument();
+        } catch (XMLStreamException e) {
+            throw new SaxonApiException(e);
+        }
+        return writer.getDocumentNode();
+    }
+
+    private static String elementName(JsonToken token) {
+        switch (token) {
+            case START_OBJECT:
+                return "map";
+            case START_ARRAY:
+                return "array";
+            case VALUE_STRING:
+            case VALUE_EMBEDDED_OBJECT:
+                return "string";
+            case VALUE_NUMBER_INT:
+            case VALUE_NUMBER_FLOAT:
+                return "number";
+            case VALUE_TRUE:
+            case VALUE_FALSE:
+                return "boolean";
+            default:
+                return "null";
+        }
+    }
+
+    private static String sanitize(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (!isXmlChar(value, i)) {
+                StringBuilder builder = new StringBuilder(value.length());
+                for (int j = 0; j < value.length(); j++) {
+                    char c = value.charAt(j);
+                    if (isXmlChar(value, j)) {
+                        builder.append(c);
+                        if (Character.isHighSurrogate(c)) {
+                            builder.append(value.charAt(++j));
+                        }
+                    } else {
+                        builder.append('\uFFFD');
+                    }
+                }
+                return builder.toString();
+            }
+            if (Character.isHighSurrogate(value.charAt(i))) {
+                i++;
+            }
+        }
+        return value;
+    }
+
+    private static boolean isXmlChar(String value, int i) {
+        char c = value.charAt(i);
+        if (c >= 0x20 && c < 0xD800) {
+            return true;
+        }
+        if (c == 0x9 || c == 0xA || c == 0xD) {
+            return true;
+        }
+        if (Character.isHighSurrogate(c)) {
+            return i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1));
+        }
+        return c >= 0xE000 && c <= 0xFFFD;
+    }
+}
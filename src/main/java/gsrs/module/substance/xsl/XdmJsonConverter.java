@@ -0,0 +1,161 @@
+package gsrs.module.substance.xsl;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import net.sf.saxon.s9api.XdmArray;
+import net.sf.saxon.s9api.XdmAtomicValue;
+import net.sf.saxon.s9api.XdmItem;
+import net.sf.saxon.s9api.XdmMap;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.XdmNodeKind;
+import net.sf.saxon.s9api.XdmValue;
+
+import java.util.Map;
+
+/**
+ * Converts the result of a stylesheet into a Jackson {@link JsonNode} tree
+ * without serializing it to JSON text first.
+ *
+ * <p>Two result shapes are supported: the XML representation of JSON used by
+ * {@code fn:xml-to-json} (an {@code fn:map} or {@code fn:array} element, or a
+ * document containing one), and XDM maps and arrays as returned by
+ * {@code fn:parse-json}. Numbers are converted the way
+ * {@code fn:parse-json} followed by {@code fn:serialize} would render them,
+ * so the resulting tree matches the one parsed from the text output. An
+ * empty map entry or array member becomes {@code null}; a sequence of more
+ * than one item, which {@code fn:serialize} would reject as well, fails the
+ * conversion.</p>
+ *
+ * @author Egor Puzanov
+ */
+public final class XdmJsonConverter {
+
+    private static final JsonNodeFactory NODE_FACTORY = JsonNodeFactory.instance;
+
+    private XdmJsonConverter() {
+    }
+
+    /**
+     * Returns the converted tree, or {@code null} if the value is empty.
+     */
+    public static JsonNode toJsonNode(XdmValue value) {
+        if (value == null || value.size() == 0) {
+            return null;
+        }
+        if (value.size() > 1) {
+            throw new IllegalArgumentException("Expected a single JSON value but got a sequence of " + value.size() + " items");
+        }
+        XdmItem item = value.itemAt(0);
+        if (item instanceof XdmNode) {
+            XdmNode element = rootElement((XdmNode) item);
+            return element == null ? null : fromElement(element);
+        }
+        return fromItem(item);
+    }
+
+    private static XdmNode rootElement(XdmNode node) {
+        if (node.getNodeKind() == XdmNodeKind.ELEMENT) {
+            return node;
+        }
+        for (XdmNode child : node.children()) {
+            if (child.getNodeKind() == XdmNodeKind.ELEMENT) {
+                return child;
+            }
+        }
+        return null;
+    }
+
+    private static JsonNode fromElement(XdmNode element) {
+        if (!JsonXdmBuilder.FN_NAMESPACE.equals(element.getNodeName().getNamespace())) {
+            throw new IllegalArgumentException("Unexpected element in JSON result: " + element.getNodeName());
+        }
+        switch (element.getNodeName().getLocalName()) {
+            case "map":
+                ObjectNode object = NODE_FACTORY.objectNode();
+                for (XdmNode child : element.children()) {
+                    if (child.getNodeKind() != XdmNodeKind.ELEMENT) {
+                        continue;
+                    }
+                    String key = child.attribute("key");
+                    if (key == null) {
+                        throw new IllegalArgumentException("Missing key attribute in JSON result map entry");
+                    }
+                    if (object.has(key)) {
+                        throw new IllegalArgumentException("Duplicate key in JSON result map: " + key);
+                    }
+                    object.set(key, fromElement(child));
+                }
+                return object;
+            case "array":
+                ArrayNode array = NODE_FACTORY.arrayNode();
+                for (XdmNode child : element.children()) {
+                    if (child.getNodeKind() == XdmNodeKind.ELEMENT) {
+                        array.add(fromElement(child));
+                    }
+                }
+                return array;
+            case "string":
+                return NODE_FACTORY.textNode(element.getStringValue());
+            case "number":
+                return numberNode(Double.parseDouble(element.getStringValue().trim()));
+            case "boolean":
+                String bool = element.getStringValue().trim();
+                return NODE_FACTORY.booleanNode("true".equals(bool) || "1".equals(bool));
+            case "null":
+                return NODE_FACTORY.nullNode();
+            default:
+                throw new IllegalArgumentException("Unexpected element in JSON result: " + element.getNodeName());
+        }
+    }
+
+    private static JsonNode fromItem(XdmItem item) {
+        if (item instanceof XdmMap) {
+            ObjectNode object = NODE_FACTORY.objectNode();
+            for (Map.Entry<XdmAtomicValue, XdmValue> entry : ((XdmMap) item).asMap().entrySet()) {
+                object.set(entry.getKey().getStringValue(), fromValue(entry.getValue()));
+            }
+            return object;
+        }
+        if (item instanceof XdmArray) {
+            ArrayNode array = NODE_FACTORY.arrayNode();
+            for (XdmValue member : ((XdmArray) item).asList()) {
+                array.add(fromValue(member));
+            }
+            return array;
+        }
+        if (item instanceof XdmAtomicValue) {
+            Object value = ((XdmAtomicValue) item).getValue();
+            if (value instanceof Boolean) {
+                return NODE_FACTORY.booleanNode((Boolean) value);
+            }
+            if (value instanceof Number) {
+                return numberNode(((Number) value).doubleValue());
+            }
+        }
+        return NODE_FACTORY.textNode(item.getStringValue());
+    }
+
+    private static JsonNode fromValue(XdmValue value) {
+        if (value.size() == 0) {
+            return NODE_FACTORY.nullNode();
+        }
+        if (value.size() > 1) {
+            throw new IllegalArgumentException("Expected a single JSON value but got a sequence of " + value.size() + " items");
+        }
+        return fromItem(value.itemAt(0));
+    }
+
+    private static JsonNode numberNode(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            long integer = (long) value;
+            return integer == (int) integer ? NODE_FACTORY.numberNode((int) integer) : NODE_FACTORY.numberNode(integer);
+        }
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            throw new IllegalArgumentException("Invalid number in JSON result: " + value);
+        }
+        return NODE_FACTORY.numberNode(value);
+    }
+}
@@ -0,0 +1,226 @@
+package gsrs.module.substance.xsl;
+
+import net.sf.saxon.expr.XPathContext;
+import net.sf.saxon.lib.ExtensionFunctionCall;
+import net.sf.saxon.lib.ExtensionFunctionDefinition;
+import net.sf.saxon.om.Item;
+import net.sf.saxon.om.Sequence;
+import net.sf.saxon.om.StructuredQName;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.str.StringView;
+import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.value.DateTimeValue;
+import net.sf.saxon.value.IntegerValue;
+import net.sf.saxon.value.SequenceType;
+import net.sf.saxon.value.StringValue;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.UUID;
+
+/**
+ * Integrated Saxon extension functions for the helpers which the bundled
+ * templates call for every date and reference of every record.
+ *
+ * <p>The functions are registered on the shared processor of
+ * {@link XslTemplateCache} in the namespace {@value #NAMESPACE}:</p>
+ * <ul>
+ * <li>{@code gsrs:epoch-to-iso($epoch-ms as xs:string) as xs:string} formats
+ * epoch milliseconds as {@code yyyy-MM-ddTHH:mm:ssZ} in UTC, truncated to
+ * seconds;</li>
+ * <li>{@code gsrs:iso-to-epoch($iso as xs:string) as xs:string} converts an
+ * {@code xs:dateTime} to epoch milliseconds, using the implicit timezone if
+ * it has none;</li>
+ * <li>{@code gsrs:int-to-hex($n as xs:integer) as xs:string} returns the
+ * upper case hex digits of a non-negative integer;</li>
+ * <li>{@code gsrs:index-to-uuid($index as xs:integer) as xs:string} returns
+ * the UUID {@code 00000000-0000-4000-8000-} followed by the index as 12 hex
+ * digits;</li>
+ * <li>{@code gsrs:random-uuid() as xs:string} returns a random UUID.</li>
+ * </ul>
+ *
+ * <p>The templates use them only if {@code function-available()} reports
+ * them at compile time and otherwise fall back to their XSLT
+ * implementation, so they still run on a processor without them.</p>
+ *
+ * @author Egor Puzanov
+ */
+public final class XslExtensionFunctions {
+
+    public static final String NAMESPACE = "urn:gsrs:xsl";
+
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+    private static final String INDEX_UUID_PREFIX = "00000000-0000-4000-8000-";
+
+    private XslExtensionFunctions() {
+    }
+
+    public static void register(Processor processor) {
+        processor.registerExtensionFunction(new Function("epoch-to-iso",
+                new SequenceType[]{SequenceType.SINGLE_STRING}, SequenceType.SINGLE_STRING, false,
+                (context, arguments) -> new StringValue(epochToIso(stringArgument(arguments[0])))));
+        processor.registerExtensionFunction(new Function("iso-to-epoch",
+                new SequenceType[]{SequenceType.SINGLE_STRING}, SequenceType.SINGLE_STRING, false,
+                (context, arguments) -> new StringValue(isoToEpoch(stringArgument(arguments[0]), context))));
+        processor.registerExtensionFunction(new Function("int-to-hex",
+                new SequenceType[]{SequenceType.SINGLE_INTEGER}, SequenceType.SINGLE_STRING, false,
+                (context, arguments) -> new StringValue(intToHex(integerArgument(arguments[0])))));
+        processor.registerExtensionFunction(new Function("index-to-uuid",
+                new SequenceType[]{SequenceType.SINGLE_INTEGER}, SequenceType.SINGLE_STRING, false,
+                (context, arguments) -> new StringValue(indexToUuid(integerArgument(arguments[0])))));
+        processor.registerExtensionFunction(new Function("random-uuid",
+                new SequenceType[0], SequenceType.SINGLE_STRING, true,
+                (context, arguments) -> new StringValue(UUID.randomUUID().toString())));
+    }
+
+    /**
+     * Formats epoch milliseconds as {@code yyyy-MM-ddTHH:mm:ssZ} in UTC. The
+     * milliseconds are truncated towards zero to whole seconds.
+     */
+    private static String epochToIso(String epochMillis) throws XPathException {
+        double millis;
+        try {
+            millis = Double.parseDouble(epochMillis.trim());
+        } catch (NumberFormatException e) {
+            millis = Double.NaN;
+        }
+        if (Double.isNaN(millis) || Double.isInfinite(millis)) {
+            throw new XPathException("Cannot convert epoch milliseconds '" + epochMillis + "' to xs:dateTime",
+                    "FOCA0002");
+        }
+        LocalDateTime time = LocalDateTime.ofEpochSecond((long) (millis / 1000), 0, ZoneOffset.UTC);
+        StringBuilder iso = new StringBuilder(20);
+        int year = time.getYear();
+        if (year < 0) {
+            iso.append('-');
+            year = -year;
+        }
+        pad(iso, year, 4).append('-');
+        pad(iso, time.getMonthValue(), 2).append('-');
+        pad(iso, time.getDayOfMonth(), 2).append('T');
+        pad(iso, time.getHour(), 2).append(':');
+        pad(iso, time.getMinute(), 2).append(':');
+        pad(iso, time.getSecond(), 2).append('Z');
+        return iso.toString();
+    }
+
+    /**
+     * Converts an {@code xs:dateTime} to epoch milliseconds, truncated
+     * towards zero. A value without timezone is taken in the implicit
+     * timezone of the context.
+     */
+    private static String isoToEpoch(String iso, XPathContext context) throws XPathException {
+        try {
+            Instant instant = OffsetDateTime.parse(iso, DateTimeFormatter.ISO_OFFSET_DATE_TIME).toInstant();
+            long millis = instant.getEpochSecond() * 1000 + instant.getNano() / 1000000;
+            if (instant.getEpochSecond() < 0 && instant.getNano() % 1000000 != 0) {
+                millis++;
+            }
+            return Long.toString(millis);
+        } catch (DateTimeParseException | ArithmeticException e) {
+            // not the common offset form (e.g. no timezone or 24:00:00), parse as xs:dateTime
+        }
+        DateTimeValue dateTime = (DateTimeValue) DateTimeValue.makeDateTimeValue(StringView.of(iso.trim()),
+                context.getConfiguration().getConversionRules()).asAtomic();
+        if (!dateTime.hasTimezone()) {
+            dateTime = dateTime.adjustTimezone(context.getImplicitTimezone());
+        }
+        return dateTime.secondsSinceEpoch().multiply(BigDecimal.valueOf(1000)).toBigInteger().toString();
+    }
+
+    private static String intToHex(long n) {
+        return Long.toHexString(n).toUpperCase();
+    }
+
+    private static String indexToUuid(long index) {
+        char[] uuid = new char[INDEX_UUID_PREFIX.length() + 12];
+        INDEX_UUID_PREFIX.getChars(0, INDEX_UUID_PREFIX.length(), uuid, 0);
+        for (int i = uuid.length - 1; i >= INDEX_UUID_PREFIX.length(); i--) {
+            uuid[i] = HEX_DIGITS[(int) (index & 0xF)];
+            index >>>= 4;
+        }
+        return new String(uuid);
+    }
+
+    private static StringBuilder pad(StringBuilder builder, int value, int width) {
+        String digits = Integer.toString(value);
+        for (int i = digits.length(); i < width; i++) {
+            builder.append('0');
+        }
+        return builder.append(digits);
+    }
+
+    private static String stringArgument(Sequence argument) throws XPathException {
+        return argument.head().getStringValue();
+    }
+
+    private static long integerArgument(Sequence argument) throws XPathException {
+        Item item = argument.head();
+        try {
+            return ((IntegerValue) item).longValue();
+        } catch (XPathException e) {
+            throw new XPathException("Integer " + item.getStringValue() + " is out of range", "FOAR0002");
+        }
+    }
+
+    private interface Implementation {
+        Sequence call(XPathContext context, Sequence[] arguments) throws XPathException;
+    }
+
+    private static class Function extends ExtensionFunctionDefinition {
+        private final StructuredQName name;
+        private final SequenceType[] argumentTypes;
+        private final SequenceType resultType;
+        private final boolean sideEffects;
+        private final Implementation implementation;
+
+        private Function(String localName, SequenceType[] argumentTypes, SequenceType resultType,
+                         boolean sideEffects, Implementation implementation) {
+            this.name = new StructuredQName("gsrs", NAMESPACE, localName);
+            this.argumentTypes = argumentTypes;
+            this.resultType = resultType;
+            this.sideEffects = sideEffects;
+            this.implementation = implementation;
+        }
+
+        @Override
+        public StructuredQName getFunctionQName() {
+            return name;
+        }
+
+        @Override
+        public SequenceType[] getArgumentTypes() {
+            return argumentTypes;
+        }
+
+        @Override
+        public SequenceType getResultType(SequenceType[] suppliedArgumentTypes) {
+            return resultType;
+        }
+
+        @Override
+        public boolean trustResultType() {
+            return true;
+        }
+
+        @Override
+        public boolean hasSideEffects() {
+            return sideEffects;
+        }
+
+        @Override
+        public ExtensionFunctionCall makeCallExpression() {
+            return new ExtensionFunctionCall() {
+                @Override
+                public Sequence call(XPathContext context, Sequence[] arguments) throws XPathException {
+                    return implementation.call(context, arguments);
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package gsrs.module.substance.xsl;
+
+import lombok.extern.slf4j.Slf4j;
+
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XsltCompiler;
+import net.sf.saxon.s9api.XsltExecutable;
+import net.sf.saxon.expr.parser.CodeInjector;
+import net.sf.saxon.trace.TimingCodeInjector;
+import net.sf.saxon.trace.XSLTTraceCodeInjector;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.xml.transform.stream.StreamSource;
+
+/**
+ * Process-wide cache of compiled XSL templates.
+ *
+ * <p>Templates are resolved from the classpath first and then from the
+ * filesystem, compiled once with a shared Saxon {@link Processor} and kept
+ * keyed by the template path. Templates loaded from a file are recompiled
+ * only when the modification time of the file changes. The returned
+ * {@link XsltExecutable} is thread-safe; callers should only use
+ * {@link XsltExecutable#load()} to obtain a cheap transformer for each use.</p>
+ *
+ * <p>A template file ending with {@code .sef} or {@code .sef.xml} is loaded
+ * as a stylesheet package precompiled and exported (in XML format) by Saxon,
+ * which skips the compilation.</p>
+ *
+ * <p>The processor has the {@link XslExtensionFunctions} registered.</p>
+ *
+ * @author Egor Puzanov
+ */
+@Slf4j
+public final class XslTemplateCache {
+
+    private static final Processor PROCESSOR = new Processor(false);
+    private static final Map<String, CompiledTemplate> TEMPLATES = new ConcurrentHashMap<>();
+    private static final Map<String, CompiledTemplate> PROFILED_TEMPLATES = new ConcurrentHashMap<>();
+    private static final Map<String, CompiledTemplate> TRACED_TEMPLATES = new ConcurrentHashMap<>();
+
+    static {
+        XslExtensionFunctions.register(PROCESSOR);
+    }
+
+    private XslTemplateCache() {
+    }
+
+    public static Processor getProcessor() {
+        return PROCESSOR;
+    }
+
+    public static XsltExecutable getExecutable(String templateFile) throws SaxonApiException, IOException {
+        return getTemplate(templateFile).executable;
+    }
+
+    /**
+     * Returns the template compiled with timing hooks around every template
+     * and function, or with {@code instructions} around every instruction, for
+     * use with an {@link XslTemplateProfiler}. The profiled executable is
+     * cached separately and is slower than the plain one. An exported
+     * stylesheet package cannot be instrumented and is loaded as it is.
+     */
+    public static XsltExecutable getProfiledExecutable(String templateFile, boolean instructions)
+            throws SaxonApiException, IOException {
+        return getTemplate(instructions ? TRACED_TEMPLATES : PROFILED_TEMPLATES, templateFile,
+                instructions ? new XSLTTraceCodeInjector() : new TimingCodeInjector()).executable;
+    }
+
+    /**
+     * Returns the hex encoded SHA-256 hash of the template file content, which
+     * identifies the version of the template the executable was compiled
+     * from. Modules included or imported by the template are not part of the
+     * hash.
+     */
+    public static String getTemplateHash(String templateFile) throws SaxonApiException, IOException {
+        return getTemplate(templateFile).hash;
+    }
+
+    private static CompiledTemplate getTemplate(String templateFile) throws SaxonApiException, IOException {
+        return getTemplate(TEMPLATES, templateFile, null);
+    }
+
+    private static CompiledTemplate getTemplate(Map<String, CompiledTemplate> templates, String templateFile,
+                                                CodeInjector injector) throws SaxonApiException, IOException {
+        long lastModified = lastModified(templateFile);
+        CompiledTemplate cached = templates.get(templateFile);
+        if (cached != null && cached.lastModified == lastModified) {
+            return cached;
+        }
+        synchronized (templates) {
+            cached = templates.get(templateFile);
+            if (cached != null && cached.lastModified == lastModified) {
+                return cached;
+            }
+            log.debug("Compiling XSL template {}{}", templateFile, injector != null ? " for profiling" : "");
+            cached = compile(templateFile, lastModified, injector);
+            templates.put(templateFile, cached);
+            return cached;
+        }
+    }
+
+    public static void invalidate(String templateFile) {
+        TEMPLATES.remove(templateFile);
+        PROFILED_TEMPLATES.remove(templateFile);
+        TRACED_TEMPLATES.remove(templateFile);
+    }
+
+    private static CompiledTemplate compile(String templateFile, long lastModified, CodeInjector injector)
+            throws SaxonApiException, IOException {
+        XsltCompiler compiler = PROCESSOR.newXsltCompiler();
+        if (injector != null) {
+            compiler.getUnderlyingCompilerInfo().setCodeInjector(injector);
+        }
+        URL resource = Thread.currentThread().getContextClassLoader().getResource(templateFile);
+        InputStream templateStream;
+        String systemId;
+        if (resource != null) {
+            templateStream = resource.openStream();
+            systemId = resource.toExternalForm();
+        } else {
+            File file = new File(templateFile);
+            if (!file.exists()) {
+                throw new IOException("XSL template not found on classpath or filesystem: " + templateFile);
+            }
+            templateStream = new FileInputStream(file);
+            systemId = file.toURI().toString();
+        }
+        byte[] content;
+        try {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            byte[] chunk = new byte[8192];
+            int n;
+            while ((n = templateStream.read(chunk)) > 0) {
+                buffer.write(chunk, 0, n);
+            }
+            content = buffer.toByteArray();
+        } finally {
+            templateStream.close();
+        }
+        StreamSource source = new StreamSource(new ByteArrayInputStream(content), systemId);
+        XsltExecutable executable = isExportedPackage(templateFile)
+                ? compiler.loadExecutablePackage(source)
+                : compiler.compile(source);
+        return new CompiledTemplate(lastModified, executable, sha256(content));
+    }
+
+    private static String sha256(byte[] content) {
+        try {
+            StringBuilder hex = new StringBuilder(64);
+            for (byte b : MessageDigest.getInstance("SHA-256").digest(content)) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static boolean isExportedPackage(String templateFile) {
+        String name = templateFile.toLowerCase();
+        return name.endsWith(".sef") || name.endsWith(".sef.xml");
+    }
+
+    private static long lastModified(String templateFile) {
+        URL resource = Thread.currentThread().getContextClassLoader().getResource(templateFile);
+        if (resource != null) {
+            if (!"file".equals(resource.getProtocol())) {
+                return 0L;
+            }
+            try {
+                return new File(resource.toURI()).lastModified();
+            } catch (URISyntaxException e) {
+                return 0L;
+            }
+        }
+        return new File(templateFile).lastModified();
+    }
+
+    private static class CompiledTemplate {
+        private final long lastModified;
+        private final XsltExecutable executable;
+        private final String hash;
+
+        private CompiledTemplate(long lastModified, XsltExecutable executable, String hash) {
+            this.lastModified = lastModified;
+            this.executable = executable;
+            this.hash = hash;
+        }
+    }
+}
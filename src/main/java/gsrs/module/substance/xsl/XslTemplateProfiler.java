@@ -0,0 +1,311 @@
+package gsrs.module.substance.xsl;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import lombok.extern.slf4j.Slf4j;
+
+import net.sf.saxon.Controller;
+import net.sf.saxon.expr.Expression;
+import net.sf.saxon.expr.XPathContext;
+import net.sf.saxon.expr.instruct.GlobalVariable;
+import net.sf.saxon.expr.instruct.NamedTemplate;
+import net.sf.saxon.expr.instruct.TemplateRule;
+import net.sf.saxon.expr.instruct.TraceExpression;
+import net.sf.saxon.expr.instruct.UserFunction;
+import net.sf.saxon.lib.TraceListener;
+import net.sf.saxon.trace.Traceable;
+import net.sf.saxon.trace.TraceableComponent;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects the time spent in the templates and functions of an XSL template
+ * compiled for profiling, see {@link XslTemplateCache#getProfiledExecutable(String, boolean)}.
+ *
+ * <p>For every {@code xsl:template}, {@code xsl:function} and global variable,
+ * and for a template compiled with instruction tracing also for every
+ * instruction (labeled with its line), the profiler counts the invocations
+ * and sums the inclusive time (including the called templates, functions and
+ * instructions; recursive calls are counted once) and the exclusive time.
+ * It also sums the exclusive time per call stack for a flame graph. One
+ * profiler can be attached to any number of transformers, also on different
+ * threads; {@link #writeReport(File)} writes the report as JSON and HTML.</p>
+ *
+ * @author Egor Puzanov
+ */
+@Slf4j
+public class XslTemplateProfiler implements TraceListener {
+
+    private static final int MAX_STACK_DEPTH = 64;
+    private static final double MIN_FLAME_SHARE = 0.001;
+
+    private final String templateFile;
+    private final long started = System.currentTimeMillis();
+    private final Map<Traceable, String> labels = new ConcurrentHashMap<>();
+    private final Map<String, Component> components = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> stacks = new ConcurrentHashMap<>();
+    private final LongAdder transformations = new LongAdder();
+    private final ThreadLocal<CallStack> callStack = ThreadLocal.withInitial(CallStack::new);
+
+    public XslTemplateProfiler(String templateFile) {
+        this.templateFile = templateFile;
+    }
+
+    @Override
+    public void open(Controller controller) {
+        transformations.increment();
+    }
+
+    @Override
+    public void enter(Traceable info, Map<String, Object> properties, XPathContext context) {
+        String label = label(info);
+        if (label == null) {
+            return;
+        }
+        CallStack stack = callStack.get();
+        Frame parent = stack.frames.peek();
+        String path = parent == null ? label
+                : stack.frames.size() >= MAX_STACK_DEPTH ? parent.path : parent.path + ";" + label;
+        stack.frames.push(new Frame(label, path, stack.enter(label), System.nanoTime()));
+    }
+
+    @Override
+    public void leave(Traceable info) {
+        if (label(info) == null) {
+            return;
+        }
+        CallStack stack = callStack.get();
+        Frame frame = stack.frames.poll();
+        if (frame == null) {
+            return;
+        }
+        long elapsed = System.nanoTime() - frame.start;
+        long exclusive = Math.max(0, elapsed - frame.children);
+        Frame parent = stack.frames.peek();
+        if (parent != null) {
+            parent.children += elapsed;
+        }
+        stack.leave(frame.label);
+        Component component = components.computeIfAbsent(frame.label, k -> new Component());
+        component.calls.increment();
+        component.exclusive.add(exclusive);
+        if (frame.outermost) {
+            component.inclusive.add(elapsed);
+        }
+        stacks.computeIfAbsent(frame.path, k -> new LongAdder()).add(exclusive);
+    }
+
+    /**
+     * Writes the report into the directory as
+     * {@code <template>-<timestamp>.json} and {@code .html}.
+     *
+     * @return the JSON report file
+     */
+    public File writeReport(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create XSL profile directory: " + directory);
+        }
+        String name = templateFile.replaceAll("^.*[/\\\\]", "").replaceAll("\\.xslt?$", "")
+                + "-" + new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(new Date(started));
+        File json = new File(directory, name + ".json");
+        File html = new File(directory, name + ".html");
+        ObjectMapper mapper = new ObjectMapper();
+        mapper.writerWithDefaultPrettyPrinter().writeValue(json, toJson(mapper));
+        try (Writer writer = Files.newBufferedWriter(html.toPath(), StandardCharsets.UTF_8)) {
+            writeHtml(writer);
+        }
+        log.info("XSL template profile of {} written to {}", templateFile, json);
+        return json;
+    }
+
+    /**
+     * Writes the report into the directory and logs a failure instead of
+     * throwing it, for use at the end of an export or import.
+     */
+    public void writeReportQuietly(File directory) {
+        try {
+            writeReport(directory);
+        } catch (IOException e) {
+            log.warn("Unable to write XSL template profile to {}", directory, e);
+        }
+    }
+
+    public ObjectNode toJson(ObjectMapper mapper) {
+        ObjectNode report = mapper.createObjectNode();
+        report.put("template", templateFile);
+        report.put("started", started);
+        report.put("transformations", transformations.sum());
+        ArrayNode list = report.putArray("components");
+        for (Map.Entry<String, Component> entry : sortedComponents()) {
+            list.addObject()
+                    .put("name", entry.getKey())
+                    .put("calls", entry.getValue().calls.sum())
+                    .put("inclusiveNanos", entry.getValue().inclusive.sum())
+                    .put("exclusiveNanos", entry.getValue().exclusive.sum());
+        }
+        ArrayNode stackList = report.putArray("stacks");
+        new TreeMap<>(stacks).forEach((path, nanos) -> stackList.addObject()
+                .put("stack", path)
+                .put("exclusiveNanos", nanos.sum()));
+        return report;
+    }
+
+    private List<Map.Entry<String, Component>> sortedComponents() {
+        List<Map.Entry<String, Component>> sorted = new ArrayList<>(components.entrySet());
+        sorted.sort((a, b) -> Long.compare(b.getValue().exclusive.sum(), a.getValue().exclusive.sum()));
+        return sorted;
+    }
+
+    private void writeHtml(Writer out) throws IOException {
+        FlameNode root = new FlameNode("all");
+        stacks.forEach((path, nanos) -> {
+            FlameNode node = root;
+            long value = nanos.sum();
+            node.total += value;
+            for (String label : path.split(";")) {
+                node = node.children.computeIfAbsent(label, FlameNode::new);
+                node.total += value;
+            }
+        });
+        out.write("<!DOCTYPE html>\n<html><head><meta charset=\"UTF-8\"><title>XSL profile: ");
+        out.write(escape(templateFile));
+        out.write("</title>\n<style>\n"
+                + "body{font-family:sans-serif;font-size:13px}\n"
+                + "table{border-collapse:collapse}td,th{padding:2px 8px;border-bottom:1px solid #ddd}"
+                + "td.n{text-align:right}\n"
+                + ".f{display:flex;align-items:flex-start}.b{overflow:hidden;min-width:0}"
+                + ".l{background:#e8853a;border:1px solid #fff;white-space:nowrap;overflow:hidden;"
+                + "text-overflow:ellipsis;padding:1px 3px}\n"
+                + "</style></head><body>\n<h1>");
+        out.write(escape(templateFile));
+        out.write("</h1>\n<p>" + transformations.sum() + " transformations, "
+                + String.format("%.1f", root.total / 1e6) + " ms in templates and functions</p>\n");
+        out.write("<h2>Flame graph</h2>\n<div class=\"f\">");
+        writeFlame(out, root, root.total, root.total);
+        out.write("</div>\n<h2>Templates and functions</h2>\n<table><tr><th>Name</th><th>Calls</th>"
+                + "<th>Inclusive ms</th><th>Exclusive ms</th><th>Exclusive %</th></tr>\n");
+        for (Map.Entry<String, Component> entry : sortedComponents()) {
+            Component component = entry.getValue();
+            out.write("<tr><td>" + escape(entry.getKey()) + "</td><td class=\"n\">" + component.calls.sum()
+                    + "</td><td class=\"n\">" + String.format("%.3f", component.inclusive.sum() / 1e6)
+                    + "</td><td class=\"n\">" + String.format("%.3f", component.exclusive.sum() / 1e6)
+                    + "</td><td class=\"n\">" + String.format("%.1f", root.total == 0 ? 0.0
+                    : 100.0 * component.exclusive.sum() / root.total) + "</td></tr>\n");
+        }
+        out.write("</table>\n</body></html>\n");
+    }
+
+    private void writeFlame(Writer out, FlameNode node, long parentTotal, long total) throws IOException {
+        String title = escape(node.label) + ": " + String.format("%.3f ms, %.1f%%", node.total / 1e6,
+                total == 0 ? 0.0 : 100.0 * node.total / total);
+        out.write("<div class=\"b\" style=\"width:" + String.format("%.3f", parentTotal == 0 ? 100.0
+                : 100.0 * node.total / parentTotal) + "%\"><div class=\"l\" title=\"" + title + "\">"
+                + escape(node.label) + "</div><div class=\"f\">");
+        for (FlameNode child : node.children.values()) {
+            if (total > 0 && child.total >= total * MIN_FLAME_SHARE) {
+                writeFlame(out, child, node.total, total);
+            }
+        }
+        out.write("</div></div>");
+    }
+
+    private String label(Traceable info) {
+        if (!(info instanceof TraceableComponent || info instanceof Expression)
+                || info instanceof TraceExpression) {
+            return null;
+        }
+        return labels.computeIfAbsent(info, XslTemplateProfiler::describe);
+    }
+
+    private static String describe(Traceable info) {
+        StringBuilder label = new StringBuilder();
+        if (info instanceof TemplateRule) {
+            label.append("template match=\"").append(((TemplateRule) info).getMatchPattern().toShortString())
+                    .append('"');
+        } else if (info instanceof NamedTemplate) {
+            label.append("template name=\"").append(info.getObjectName().getDisplayName()).append('"');
+        } else if (info instanceof UserFunction) {
+            label.append("function ").append(info.getObjectName().getDisplayName())
+                    .append('#').append(((UserFunction) info).getArity());
+        } else if (info instanceof GlobalVariable) {
+            label.append("variable $").append(info.getObjectName().getDisplayName());
+        } else {
+            label.append(info instanceof Expression ? ((Expression) info).getExpressionName()
+                    : ((TraceableComponent) info).getTracingTag());
+            if (info.getObjectName() != null) {
+                label.append(' ').append(info.getObjectName().getDisplayName());
+            }
+        }
+        if (info.getLocation() != null) {
+            String systemId = info.getLocation().getSystemId();
+            label.append(" (").append(systemId == null ? "" : systemId.replaceAll("^.*/", ""))
+                    .append(':').append(info.getLocation().getLineNumber()).append(')');
+        }
+        return label.toString();
+    }
+
+    private static String escape(String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+
+    private static class Component {
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder inclusive = new LongAdder();
+        private final LongAdder exclusive = new LongAdder();
+    }
+
+    private static class Frame {
+        private final String label;
+        private final String path;
+        private final boolean outermost;
+        private final long start;
+        private long children = 0;
+
+        private Frame(String label, String path, boolean outermost, long start) {
+            this.label = label;
+            this.path = path;
+            this.outermost = outermost;
+            this.start = start;
+        }
+    }
+
+    private static class CallStack {
+        private final Deque<Frame> frames = new ArrayDeque<>();
+        private final Map<String, Integer> active = new HashMap<>();
+
+        private boolean enter(String label) {
+            return active.merge(label, 1, Integer::sum) == 1;
+        }
+
+        private void leave(String label) {
+            active.computeIfPresent(label, (k, n) -> n == 1 ? null : n - 1);
+        }
+    }
+
+    private static class FlameNode {
+        private final String label;
+        private final Map<String, FlameNode> children = new TreeMap<>();
+        private long total = 0;
+
+        private FlameNode(String label) {
+            this.label = label;
+        }
+    }
+}
@@ -4,16 +4,25 @@
                 xmlns:xs="http://www.w3.org/2001/XMLSchema"
                 xmlns:fn="http://www.w3.org/2005/xpath-functions"
                 xmlns:local="urn:local"
-                exclude-result-prefixes="fn xs local">
+                xmlns:gsrs="urn:gsrs:xsl"
+                exclude-result-prefixes="fn xs local gsrs">
 
     <xsl:output method="json" encoding="UTF-8"/>
 
     <xsl:param name="json-input" as="xs:string" required="yes"/>
+    <xsl:param name="json-xml" as="document-node()" select="fn:json-to-xml($json-input)"/>
     
     <!-- Current timestamp in ISO format for lastUpdated -->
     <xsl:variable name="current-timestamp" select="'2024-10-08T13:37:23.468+00:00'"/>
 
-    <xsl:function name="local:epoch-to-iso" as="xs:string">
+    <xsl:function name="local:epoch-to-iso" as="xs:string"
+                  use-when="function-available('gsrs:epoch-to-iso', 1)">
+        <xsl:param name="epoch-ms" as="xs:string"/>
+        <xsl:sequence select="gsrs:epoch-to-iso($epoch-ms)"/>
+    </xsl:function>
+
+    <xsl:function name="local:epoch-to-iso" as="xs:string"
+                  use-when="not(function-available('gsrs:epoch-to-iso', 1))">
         <xsl:param name="epoch-ms" as="xs:string"/>
         <xsl:sequence select="fn:format-dateTime(
             xs:dateTime('1970-01-01T00:00:00Z')
@@ -23,7 +32,7 @@
 
     <xsl:template match="/">
         <!-- Parse the JSON input string -->
-        <xsl:variable name="json-doc" select="fn:json-to-xml($json-input)"/>
+        <xsl:variable name="json-doc" select="$json-xml"/>
         
         <!-- Extract key values from source -->
         <xsl:variable name="root" select="$json-doc/fn:map"/>
@@ -4,18 +4,27 @@
                 xmlns:xs="http://www.w3.org/2001/XMLSchema"
                 xmlns:fn="http://www.w3.org/2005/xpath-functions"
                 xmlns:local="urn:local"
-                exclude-result-prefixes="fn xs local">
+                xmlns:gsrs="urn:gsrs:xsl"
+                exclude-result-prefixes="fn xs local gsrs">
 
     <xsl:output method="json" encoding="UTF-8"/>
 
     <xsl:param name="json-input" as="xs:string" required="yes"/>
+    <xsl:param name="json-xml" as="document-node()" select="fn:json-to-xml($json-input)"/>
 
-    <xsl:variable name="json-doc" select="fn:json-to-xml($json-input)"/>
+    <xsl:variable name="json-doc" select="$json-xml"/>
 
     <xsl:variable name="cv-base-url" as="xs:string"
                   select="'https://gsrs.ncats.nih.gov/api/v1/vocabularies/'"/>
 
-    <xsl:function name="local:epoch-to-iso" as="xs:string">
+    <xsl:function name="local:epoch-to-iso" as="xs:string"
+                  use-when="function-available('gsrs:epoch-to-iso', 1)">
+        <xsl:param name="epoch-ms" as="xs:string"/>
+        <xsl:sequence select="gsrs:epoch-to-iso($epoch-ms)"/>
+    </xsl:function>
+
+    <xsl:function name="local:epoch-to-iso" as="xs:string"
+                  use-when="not(function-available('gsrs:epoch-to-iso', 1))">
         <xsl:param name="epoch-ms" as="xs:string"/>
         <xsl:sequence select="fn:format-dateTime(
             xs:dateTime('1970-01-01T00:00:00Z')
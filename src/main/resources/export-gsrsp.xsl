@@ -3,18 +3,24 @@
                 xmlns:xsl="http://www.w3.org/1999/XSL/Transform"
                 xmlns:xs="http://www.w3.org/2001/XMLSchema"
                 xmlns:fn="http://www.w3.org/2005/xpath-functions"
-                exclude-result-prefixes="fn xs">
+                xmlns:map="http://www.w3.org/2005/xpath-functions/map"
+                exclude-result-prefixes="fn map xs">
 
     <xsl:output method="json" encoding="UTF-8"/>
     <xsl:param name="json-input" as="xs:string" required="yes"/>
+    <xsl:param name="json-xml" as="document-node()" select="fn:json-to-xml($json-input)"/>
 
     <xsl:template match="/">
-        <xsl:variable name="json-doc" select="fn:json-to-xml($json-input)"/>
-        <xsl:variable name="root-refs" select="$json-doc/fn:map/fn:array[@key='references']/fn:map"/>
+        <xsl:variable name="json-doc" select="$json-xml"/>
+        <xsl:variable name="root-refs" select="$json-doc/fn:map/fn:array[@key='references']/fn:map/fn:string[@key='uuid']"/>
+        <!-- UUID to index of the root references, built once per record. -->
+        <xsl:variable name="ref-indexes" as="map(xs:string, xs:integer)" select="map:merge(
+            for $i in 1 to count($root-refs) return map:entry(string($root-refs[$i]), $i - 1),
+            map {'duplicates': 'use-first'})"/>
 
         <xsl:variable name="cleaned">
             <xsl:apply-templates select="$json-doc/fn:map" mode="clean">
-                <xsl:with-param name="root-refs" select="$root-refs" tunnel="yes"/>
+                <xsl:with-param name="ref-indexes" select="$ref-indexes" tunnel="yes"/>
             </xsl:apply-templates>
         </xsl:variable>
 
@@ -22,7 +28,6 @@
     </xsl:template>
 
     <xsl:template match="*" mode="clean">
-        <xsl:param name="root-refs" tunnel="yes"/>
         <xsl:copy>
             <xsl:apply-templates select="@*" mode="clean"/>
             <xsl:apply-templates select="node()" mode="clean"/>
@@ -36,13 +41,11 @@
     <xsl:template match="*[@key=('id','uuid','created','createdBy','lastEdited','lastEditedBy','approved','approvedBy','_self','refuuid','originatorUuid')]" mode="clean"/>
 
     <xsl:template match="fn:array[@key='references'][fn:string]" mode="clean">
-        <xsl:param name="root-refs" tunnel="yes"/>
+        <xsl:param name="ref-indexes" as="map(xs:string, xs:integer)" tunnel="yes"/>
         <fn:array key="references">
             <xsl:for-each select="fn:string">
-                <xsl:variable name="ref-uuid" select="text()"/>
-                <xsl:variable name="index" select="index-of($root-refs/fn:string[@key='uuid']/text(), $ref-uuid)"/>
                 <fn:number>
-                    <xsl:value-of select="if (exists($index)) then ($index - 1) else ()"/>
+                    <xsl:value-of select="$ref-indexes(string(.))"/>
                 </fn:number>
             </xsl:for-each>
         </fn:array>
@@ -4,13 +4,16 @@
                 xmlns:xs="http://www.w3.org/2001/XMLSchema"
                 xmlns:fn="http://www.w3.org/2005/xpath-functions"
                 xmlns:local="urn:local"
-                exclude-result-prefixes="fn xs local">
+                xmlns:gsrs="urn:gsrs:xsl"
+                exclude-result-prefixes="fn xs local gsrs">
 
     <xsl:output method="json" encoding="UTF-8" indent="yes"/>
 
     <xsl:param name="raw-input" as="xs:string" required="yes"/>
+    <xsl:param name="json-xml" as="document-node()" select="fn:json-to-xml($raw-input)"/>
+    <xsl:param name="result-mode" as="xs:string" select="'text'"/>
 
-    <xsl:variable name="json-doc" select="fn:json-to-xml($raw-input)"/>
+    <xsl:variable name="json-doc" select="$json-xml"/>
     <xsl:variable name="root" select="$json-doc/fn:map"/>
 
     <xsl:variable name="cv-base-url" as="xs:string"
@@ -84,7 +87,14 @@
         '100000072338': 'ja'
     }"/>
 
-    <xsl:function name="local:iso-to-epoch" as="xs:string">
+    <xsl:function name="local:iso-to-epoch" as="xs:string"
+                  use-when="function-available('gsrs:iso-to-epoch', 1)">
+        <xsl:param name="iso" as="xs:string"/>
+        <xsl:sequence select="gsrs:iso-to-epoch($iso)"/>
+    </xsl:function>
+
+    <xsl:function name="local:iso-to-epoch" as="xs:string"
+                  use-when="not(function-available('gsrs:iso-to-epoch', 1))">
         <xsl:param name="iso" as="xs:string"/>
         <xsl:variable name="dt" select="xs:dateTime(replace($iso, 'Z$', '+00:00'))"/>
         <xsl:sequence select="xs:string(xs:integer(($dt - xs:dateTime('1970-01-01T00:00:00Z')) div xs:dayTimeDuration('PT0.001S')) )"/>
@@ -96,7 +106,14 @@
                 <xsl:call-template name="substance"/>
             </fn:map>
         </xsl:variable>
-        <xsl:value-of select="fn:xml-to-json($substance) => fn:parse-json() => fn:serialize(map {'method':'json', 'use-character-maps': map{'/':'/'}})"/>
+        <xsl:choose>
+            <xsl:when test="$result-mode = 'xdm'">
+                <xsl:sequence select="$substance"/>
+            </xsl:when>
+            <xsl:otherwise>
+                <xsl:value-of select="fn:xml-to-json($substance) => fn:parse-json() => fn:serialize(map {'method':'json', 'use-character-maps': map{'/':'/'}})"/>
+            </xsl:otherwise>
+        </xsl:choose>
     </xsl:template>
 
     <xsl:template name="substance">
@@ -3,8 +3,10 @@
                 xmlns:xsl="http://www.w3.org/1999/XSL/Transform"
                 xmlns:xs="http://www.w3.org/2001/XMLSchema"
                 xmlns:fn="http://www.w3.org/2005/xpath-functions"
+                xmlns:map="http://www.w3.org/2005/xpath-functions/map"
                 xmlns:local="urn:local"
-                exclude-result-prefixes="fn xs local">
+                xmlns:gsrs="urn:gsrs:xsl"
+                exclude-result-prefixes="fn map xs local gsrs">
 
     <xsl:output method="json" encoding="UTF-8" indent="yes"/>
 
@@ -18,35 +20,47 @@
     -->
 
     <xsl:param name="raw-input" as="xs:string" required="yes"/>
+    <xsl:param name="json-xml" as="document-node()" select="fn:json-to-xml($raw-input)"/>
+    <xsl:param name="result-mode" as="xs:string" select="'text'"/>
 
-    <xsl:variable name="json-doc" select="fn:json-to-xml($raw-input)"/>
+    <xsl:variable name="json-doc" select="$json-xml"/>
     <xsl:variable name="root" select="$json-doc/fn:map"/>
 
-    <xsl:function name="local:int-to-hex" as="xs:string">
-        <xsl:param name="n" as="xs:integer"/>
-        <xsl:variable name="digits" select="'0123456789ABCDEF'"/>
-        <xsl:choose>
-            <xsl:when test="$n lt 16">
-                <xsl:value-of select="substring($digits, $n + 1, 1)"/>
-            </xsl:when>
-            <xsl:otherwise>
-                <xsl:value-of select="concat(local:int-to-hex($n idiv 16), substring($digits, ($n mod 16) + 1, 1))"/>
-            </xsl:otherwise>
-        </xsl:choose>
+    <xsl:function name="local:index-to-uuid" as="xs:string"
+                  use-when="function-available('gsrs:index-to-uuid', 1)">
+        <xsl:param name="index" as="xs:integer"/>
+        <xsl:sequence select="gsrs:index-to-uuid($index)"/>
     </xsl:function>
 
-    <xsl:function name="local:index-to-uuid" as="xs:string">
+    <!-- Powers of 16 of the 12 hex digits of the last UUID group. -->
+    <xsl:variable name="hex-powers" as="xs:integer*"
+                  use-when="not(function-available('gsrs:index-to-uuid', 1))"
+                  select="for $p in reverse(0 to 11) return fold-left(1 to $p, 1, function($a, $i) { $a * 16 })"/>
+
+    <xsl:function name="local:index-to-uuid" as="xs:string"
+                  use-when="not(function-available('gsrs:index-to-uuid', 1))">
         <xsl:param name="index" as="xs:integer"/>
-        <xsl:variable name="hex" select="local:int-to-hex($index)"/>
-        <xsl:variable name="padded" select="concat(substring('000000000000', 1, 12 - string-length($hex)), $hex)"/>
-        <xsl:value-of select="concat('00000000-0000-4000-8000-', $padded)"/>
+        <xsl:sequence select="concat('00000000-0000-4000-8000-', string-join(
+            for $power in $hex-powers return substring('0123456789ABCDEF', ($index idiv $power) mod 16 + 1, 1)))"/>
     </xsl:function>
 
+    <!-- Index to generated UUID of the root references, built once per record. -->
+    <xsl:variable name="ref-uuids" as="map(xs:integer, xs:string)" select="map:merge(
+        for $i in 0 to count($root/fn:array[@key='references']/fn:map) - 1
+        return map:entry($i, local:index-to-uuid($i)))"/>
+
     <xsl:template match="/">
         <xsl:variable name="restored">
             <xsl:apply-templates select="$root" mode="restore"/>
         </xsl:variable>
-        <xsl:value-of select="fn:xml-to-json($restored/fn:map) =&gt; fn:parse-json() =&gt; fn:serialize(map {'method':'json', 'use-character-maps': map{'/':'/'}})"/>
+        <xsl:choose>
+            <xsl:when test="$result-mode = 'xdm'">
+                <xsl:sequence select="$restored/fn:map"/>
+            </xsl:when>
+            <xsl:otherwise>
+                <xsl:value-of select="fn:xml-to-json($restored/fn:map) =&gt; fn:parse-json() =&gt; fn:serialize(map {'method':'json', 'use-character-maps': map{'/':'/'}})"/>
+            </xsl:otherwise>
+        </xsl:choose>
     </xsl:template>
 
     <!-- Identity transform -->
@@ -65,7 +79,7 @@
     <xsl:template match="fn:array[@key='references']/fn:map" mode="restore">
         <fn:map>
             <fn:string key="uuid">
-                <xsl:value-of select="local:index-to-uuid(position() - 1)"/>
+                <xsl:value-of select="($ref-uuids(position() - 1), local:index-to-uuid(position() - 1))[1]"/>
             </fn:string>
             <xsl:apply-templates select="@*" mode="restore"/>
             <xsl:apply-templates select="node()" mode="restore"/>
@@ -77,7 +91,8 @@
         <fn:array key="references">
             <xsl:for-each select="fn:number">
                 <fn:string>
-                    <xsl:value-of select="local:index-to-uuid(xs:integer(.))"/>
+                    <xsl:variable name="index" select="xs:integer(.)"/>
+                    <xsl:value-of select="($ref-uuids($index), local:index-to-uuid($index))[1]"/>
                 </fn:string>
             </xsl:for-each>
         </fn:array>